@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Im;
+
+/**
+ * A copy of the accountStatus table in memory, so the status of the accounts can be read
+ * without going through the providers/accounts join.
+ *
+ * The statuses are kept in a pair of arrays sorted by account id, the presence status and
+ * the connection status of an account packed into one int. There are only a handful of
+ * accounts, so a lookup is a binary search over a few longs.
+ *
+ * The writers read the rows they changed inside their transaction, and the cache is only
+ * updated once the transaction commits. The database is never read under the lock of the
+ * cache, so a query waiting for the database never holds up a writer applying its changes.
+ */
+final class AccountStatusCache {
+    static final String[] COLUMNS = new String[] {
+            Im.AccountStatus.ACCOUNT,
+            Im.AccountStatus.PRESENCE_STATUS,
+            Im.AccountStatus.CONNECTION_STATUS,
+    };
+
+    private static final String[] STATUS_PROJECTION = new String[] {
+            Im.AccountStatus.ACCOUNT,               // 0
+            Im.AccountStatus.PRESENCE_STATUS,       // 1
+            Im.AccountStatus.CONNECTION_STATUS,     // 2
+    };
+
+    private static final String TABLE_ACCOUNT_STATUS = "accountStatus";
+
+    /**
+     * The statuses of some accounts, sorted by account id.
+     */
+    static final class Statuses {
+        private long[] mAccounts = new long[4];
+        private int[] mStatuses = new int[4];
+        private int mSize;
+
+        /**
+         * @return the ids of the accounts, in account id order.
+         */
+        long[] getAccounts() {
+            long[] accounts = new long[mSize];
+            System.arraycopy(mAccounts, 0, accounts, 0, mSize);
+            return accounts;
+        }
+
+        private void put(long account, int status) {
+            int index = indexOf(account);
+            if (index >= 0) {
+                mStatuses[index] = status;
+                return;
+            }
+
+            index = ~index;
+            if (mSize == mAccounts.length) {
+                long[] accounts = new long[mSize * 2];
+                int[] statuses = new int[mSize * 2];
+                System.arraycopy(mAccounts, 0, accounts, 0, mSize);
+                System.arraycopy(mStatuses, 0, statuses, 0, mSize);
+                mAccounts = accounts;
+                mStatuses = statuses;
+            }
+            System.arraycopy(mAccounts, index, mAccounts, index + 1, mSize - index);
+            System.arraycopy(mStatuses, index, mStatuses, index + 1, mSize - index);
+            mAccounts[index] = account;
+            mStatuses[index] = status;
+            mSize++;
+        }
+
+        private void remove(long account) {
+            int index = indexOf(account);
+            if (index >= 0) {
+                System.arraycopy(mAccounts, index + 1, mAccounts, index, mSize - index - 1);
+                System.arraycopy(mStatuses, index + 1, mStatuses, index, mSize - index - 1);
+                mSize--;
+            }
+        }
+
+        // the index of the account, or the one's complement of where it would be inserted
+        private int indexOf(long account) {
+            int low = 0;
+            int high = mSize - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long value = mAccounts[mid];
+                if (value < account) {
+                    low = mid + 1;
+                } else if (value > account) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return ~low;
+        }
+
+        private Cursor query(long account) {
+            MatrixCursor c;
+            if (account > 0) {
+                c = new MatrixCursor(COLUMNS, 1);
+                int index = indexOf(account);
+                if (index >= 0) {
+                    addRow(c, index);
+                }
+            } else {
+                c = new MatrixCursor(COLUMNS, mSize);
+                for (int i = 0; i < mSize; i++) {
+                    addRow(c, i);
+                }
+            }
+            return c;
+        }
+
+        private void addRow(MatrixCursor c, int index) {
+            int status = mStatuses[index];
+            c.addRow(new Object[] { mAccounts[index], unpack(status >>> 16), unpack(status) });
+        }
+    }
+
+    // null until the table is read
+    private Statuses mStatuses;
+    // counts the changes, to tell whether one was applied while the table was being read
+    private int mGeneration;
+
+    /**
+     * Gets the status of an account, or of all the accounts.
+     *
+     * @param account the account, or 0 for all of them.
+     * @return a cursor with the {@link #COLUMNS} of the accounts, in account id order.
+     */
+    Cursor query(SQLiteDatabase db, long account) {
+        int generation;
+        synchronized (this) {
+            if (mStatuses != null) {
+                return mStatuses.query(account);
+            }
+            generation = mGeneration;
+        }
+
+        Statuses statuses = read(db, null);
+        synchronized (this) {
+            // a change applied in the meantime may be missing, use it for this query only
+            if (generation == mGeneration) {
+                mStatuses = statuses;
+            }
+            return statuses.query(account);
+        }
+    }
+
+    /**
+     * Reads the status of the accounts matching the selection, after they were written.
+     * The statuses are given to {@link #update} once the write is committed.
+     */
+    Statuses read(SQLiteDatabase db, String selection) {
+        Statuses statuses = new Statuses();
+        Cursor c = db.query(TABLE_ACCOUNT_STATUS, STATUS_PROJECTION, selection, null,
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                statuses.put(c.getLong(0), pack(c, 1, 2));
+            }
+        } finally {
+            c.close();
+        }
+        return statuses;
+    }
+
+    /**
+     * Updates the cached status of the accounts read by {@link #read}.
+     */
+    synchronized void update(Statuses changed) {
+        mGeneration++;
+        if (mStatuses != null) {
+            for (int i = 0; i < changed.mSize; i++) {
+                mStatuses.put(changed.mAccounts[i], changed.mStatuses[i]);
+            }
+        }
+    }
+
+    synchronized void remove(long account) {
+        mGeneration++;
+        if (mStatuses != null) {
+            mStatuses.remove(account);
+        }
+    }
+
+    /**
+     * Drops all the statuses, after the table changed in a way the cache can't follow.
+     * They're read from the database again when they're next needed.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mStatuses = null;
+    }
+
+    // each status is stored plus one in 16 bits, so that 0 stands for null
+    private static int pack(Cursor c, int presenceColumn, int connectionColumn) {
+        int presence = c.isNull(presenceColumn) ? 0 : (c.getInt(presenceColumn) + 1) & 0xffff;
+        int connection = c.isNull(connectionColumn)
+                ? 0 : (c.getInt(connectionColumn) + 1) & 0xffff;
+        return (presence << 16) | connection;
+    }
+
+    private static Integer unpack(int status) {
+        status &= 0xffff;
+        return status == 0 ? null : status - 1;
+    }
+}
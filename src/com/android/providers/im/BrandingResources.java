@@ -16,13 +16,19 @@
 
 package com.android.providers.im;
 
+import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.graphics.drawable.Drawable;
+import android.im.IImPlugin;
 import android.os.RemoteException;
+import android.provider.Im;
 import android.util.Log;
+import android.util.SparseIntArray;
 
 import java.util.Map;
 
@@ -33,37 +39,105 @@ public class BrandingResources {
     private static final String TAG = "IM";
     private static final boolean LOCAL_DEBUG = false;
 
-    private Map<Integer, Integer> mResMapping;
+    private static final String[] RES_MAP_CACHE_PROJECTION = {
+            Im.BrandingResourceMapCache.APP_RES_ID,
+            Im.BrandingResourceMapCache.PLUGIN_RES_ID,
+    };
+
+    private static final int APP_RES_ID_COLUMN = 0;
+    private static final int PLUGIN_RES_ID_COLUMN = 1;
+
+    /**
+     * The maximum number of drawables and strings to keep in the caches.
+     */
+    private static final int MAX_CACHED_RESOURCES = 32;
+
+    private SparseIntArray mResMapping;
     private Resources mPackageRes;
 
+    private final ResourceCache<Drawable.ConstantState> mDrawableCache =
+            new ResourceCache<Drawable.ConstantState>();
+    private final ResourceCache<String> mStringCache = new ResourceCache<String>();
+
+    /**
+     * Keeps the {@link #MAX_CACHED_RESOURCES} most recently used resources, dropping the
+     * least recently used one when full. The ids are kept in a primitive array ordered from
+     * the most to the least recently used, so a lookup neither boxes the id nor allocates.
+     */
+    private static final class ResourceCache<T> {
+        private final int[] mIds = new int[MAX_CACHED_RESOURCES];
+        private final Object[] mValues = new Object[MAX_CACHED_RESOURCES];
+        private int mSize;
+
+        @SuppressWarnings("unchecked")
+        T get(int id) {
+            for (int i = 0; i < mSize; i++) {
+                if (mIds[i] == id) {
+                    T value = (T) mValues[i];
+                    moveToFront(i, id, value);
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        void put(int id, T value) {
+            int i = 0;
+            while (i < mSize && mIds[i] != id) {
+                i++;
+            }
+            if (i == mSize) {
+                if (mSize < MAX_CACHED_RESOURCES) {
+                    mSize++;
+                } else {
+                    // drop the least recently used one
+                    i = mSize - 1;
+                }
+            }
+            moveToFront(i, id, value);
+        }
+
+        private void moveToFront(int index, int id, Object value) {
+            System.arraycopy(mIds, 0, mIds, 1, index);
+            System.arraycopy(mValues, 0, mValues, 1, index);
+            mIds[0] = id;
+            mValues[0] = value;
+        }
+    }
+
     private BrandingResources mDefaultRes;
 
     /**
      * Creates a new BrandingResource of a specific plug-in. The resources will
-     * be retrieved from the plug-in package.
+     * be retrieved from the plug-in package. The resource ID map is read from the
+     * branding resource map cache, and is only retrieved from the plug-in if it hasn't
+     * been cached for the current version of the plug-in.
      *
      * @param context The current application context.
      * @param pluginInfo The info about the plug-in.
+     * @param providerId the id of the IM service provider.
      * @param provider the name of the IM service provider.
      * @param defaultRes The default branding resources. If the resource is not
      *            found in the plug-in, the default resource will be returned.
      */
-    public BrandingResources(Context context, LandingPage.PluginInfo pluginInfo, String provider,
-            BrandingResources defaultRes) {
-        String packageName = null;
+    public BrandingResources(Context context, LandingPage.PluginInfo pluginInfo, long providerId,
+            String provider, BrandingResources defaultRes) {
         mDefaultRes = defaultRes;
 
-        try {
-            mResMapping = pluginInfo.mPlugin.getResourceMapForProvider(provider);
-            packageName = pluginInfo.mPlugin.getResourcePackageNameForProvider(provider);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Failed load the plugin resource map", e);
+        ContentResolver cr = context.getContentResolver();
+        if (pluginInfo.mMetadataRefreshed) {
+            // the plug-in has changed since its resource map was cached
+            clearCachedResourceMap(cr, providerId);
+        } else {
+            mResMapping = loadCachedResourceMap(cr, providerId);
         }
 
-        if (packageName == null) {
-            packageName = pluginInfo.mPackageName;
+        if (mResMapping == null) {
+            mResMapping = loadPluginResourceMap(cr, pluginInfo, providerId, provider);
         }
 
+        String packageName = pluginInfo.getResourcePackageName(provider);
+
         PackageManager pm = context.getPackageManager();
         try {
             if (LOCAL_DEBUG) log("load resources from " + packageName);
@@ -80,7 +154,7 @@ public class BrandingResources {
      * @param context
      * @param resMapping
      */
-    public BrandingResources(Context context, Map<Integer, Integer> resMapping,
+    public BrandingResources(Context context, SparseIntArray resMapping,
             BrandingResources defaultRes) {
         mPackageRes = context.getResources();
         mResMapping = resMapping;
@@ -96,9 +170,21 @@ public class BrandingResources {
      * @return Drawable An object that can be used to draw this resource.
      */
     public Drawable getDrawable(int id) {
+        Drawable.ConstantState state = mDrawableCache.get(id);
+        if (state != null) {
+            return state.newDrawable();
+        }
+
         int resId = getPackageResourceId(id);
         if (resId != 0) {
-            return mPackageRes.getDrawable(resId);
+            Drawable drawable = mPackageRes.getDrawable(resId);
+            if (drawable != null) {
+                state = drawable.getConstantState();
+                if (state != null) {
+                    mDrawableCache.put(id, state);
+                }
+            }
+            return drawable;
         } else if (mDefaultRes != null){
             return mDefaultRes.getDrawable(id);
         } else {
@@ -117,14 +203,23 @@ public class BrandingResources {
      * @return The string data associated with the resource
      */
     public String getString(int id, Object... formatArgs) {
-        int resId = getPackageResourceId(id);
-        if (resId != 0) {
-            return mPackageRes.getString(resId, formatArgs);
-        } else if (mDefaultRes != null){
-            return  mDefaultRes.getString(id, formatArgs);
-        } else {
-            return null;
+        String str = mStringCache.get(id);
+        if (str == null) {
+            int resId = getPackageResourceId(id);
+            if (resId != 0) {
+                str = mPackageRes.getString(resId);
+                mStringCache.put(id, str);
+            } else if (mDefaultRes != null){
+                return  mDefaultRes.getString(id, formatArgs);
+            } else {
+                return null;
+            }
+        }
+
+        if (formatArgs == null || formatArgs.length == 0) {
+            return str;
         }
+        return String.format(str, formatArgs);
     }
 
     /**
@@ -150,8 +245,81 @@ public class BrandingResources {
         if (mResMapping == null || mPackageRes == null) {
             return 0;
         }
-        Integer resId = mResMapping.get(id);
-        return resId == null ? 0 : resId;
+        return mResMapping.get(id);
+    }
+
+    private SparseIntArray loadCachedResourceMap(ContentResolver cr, long providerId) {
+        Cursor c = cr.query(Im.BrandingResourceMapCache.CONTENT_URI, RES_MAP_CACHE_PROJECTION,
+                Im.BrandingResourceMapCache.PROVIDER_ID + "=" + providerId, null, null);
+        if (c == null) {
+            return null;
+        }
+
+        try {
+            if (c.getCount() == 0) {
+                return null;
+            }
+
+            SparseIntArray resMapping = new SparseIntArray(c.getCount());
+            while (c.moveToNext()) {
+                int appResId = c.getInt(APP_RES_ID_COLUMN);
+                if (appResId != 0) {
+                    resMapping.put(appResId, c.getInt(PLUGIN_RES_ID_COLUMN));
+                }
+            }
+            if (LOCAL_DEBUG) log("loaded " + resMapping.size() + " cached res ids for " + providerId);
+            return resMapping;
+        } finally {
+            c.close();
+        }
+    }
+
+    private SparseIntArray loadPluginResourceMap(ContentResolver cr,
+            LandingPage.PluginInfo pluginInfo, long providerId, String provider) {
+        IImPlugin plugin = pluginInfo.getPlugin();
+        if (plugin == null) {
+            return null;
+        }
+
+        Map<Integer, Integer> pluginResMapping;
+        try {
+            pluginResMapping = plugin.getResourceMapForProvider(provider);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed load the plugin resource map", e);
+            return null;
+        }
+
+        SparseIntArray resMapping = new SparseIntArray();
+        ContentValues[] values;
+        if (pluginResMapping == null || pluginResMapping.isEmpty()) {
+            // cache an empty row, so we don't ask the plug-in again.
+            values = new ContentValues[] { newCacheValues(providerId, 0, 0) };
+        } else {
+            values = new ContentValues[pluginResMapping.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> entry : pluginResMapping.entrySet()) {
+                int appResId = entry.getKey();
+                int pluginResId = entry.getValue();
+                resMapping.put(appResId, pluginResId);
+                values[i++] = newCacheValues(providerId, appResId, pluginResId);
+            }
+        }
+
+        cr.bulkInsert(Im.BrandingResourceMapCache.CONTENT_URI, values);
+        return resMapping;
+    }
+
+    private static ContentValues newCacheValues(long providerId, int appResId, int pluginResId) {
+        ContentValues values = new ContentValues(3);
+        values.put(Im.BrandingResourceMapCache.PROVIDER_ID, providerId);
+        values.put(Im.BrandingResourceMapCache.APP_RES_ID, appResId);
+        values.put(Im.BrandingResourceMapCache.PLUGIN_RES_ID, pluginResId);
+        return values;
+    }
+
+    private void clearCachedResourceMap(ContentResolver cr, long providerId) {
+        cr.delete(Im.BrandingResourceMapCache.CONTENT_URI,
+                Im.BrandingResourceMapCache.PROVIDER_ID + "=" + providerId, null);
     }
 
     private void log(String msg) {
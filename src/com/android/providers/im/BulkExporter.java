@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes a whole table to a file in a compact binary format, for backup, diagnostics and
+ * migration tools that need every row, avatars included.
+ *
+ * The table is read in pages of a few rows, each page starting after the last _id of the
+ * previous one, so no cursor has to hold more rows than fit in one window, whatever the
+ * size of the avatars. The pages are all read in one transaction, so the file is a
+ * consistent snapshot of the table, and writers wait until the export is done.
+ *
+ * The whole table is written before the export returns, so the file needs as much space
+ * as the rows it holds; {@link #estimateSize} tells how much at least.
+ *
+ * The file starts with the magic "IMEX", a version byte, the name of the table, the number
+ * of columns, then the name and the type of each column. Each row is the byte 1 followed by
+ * its values, each one a 0 byte for null, or a 1 byte then the value: integers as zigzag
+ * base 128 varints, text as the varint length of its UTF-8 bytes then the bytes, blobs as
+ * their varint length then the bytes. The rows are followed by a 0 byte and the varint
+ * number of rows.
+ */
+final class BulkExporter {
+    /**
+     * The query parameter restricting the export to the rows of one account.
+     */
+    static final String ACCOUNT_PARAMETER = "account";
+
+    static final int TYPE_INTEGER = 1;
+    static final int TYPE_TEXT = 2;
+    static final int TYPE_BLOB = 3;
+
+    private static final byte[] MAGIC = new byte[] { 'I', 'M', 'E', 'X' };
+    private static final int VERSION = 1;
+
+    static final class Table {
+        final String mName;
+        final String mAccountColumn;
+        final String[] mColumns;
+        final int[] mTypes;
+        // rows read per query, small enough for a page to fit in a cursor window
+        final int mPageSize;
+
+        Table(String name, String accountColumn, String[] columns, int[] types,
+                int pageSize) {
+            mName = name;
+            mAccountColumn = accountColumn;
+            mColumns = columns;
+            mTypes = types;
+            mPageSize = pageSize;
+        }
+    }
+
+    private static final Table[] TABLES = new Table[] {
+            new Table("contacts", "account",
+                    new String[] { "_id", "username", "nickname", "provider", "account",
+                            "contactList", "type", "subscriptionStatus", "subscriptionType",
+                            "qc", "rejected", "otr" },
+                    new int[] { TYPE_INTEGER, TYPE_TEXT, TYPE_TEXT, TYPE_INTEGER, TYPE_INTEGER,
+                            TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER,
+                            TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER },
+                    500),
+            new Table("avatars", "account_id",
+                    new String[] { "_id", "contact", "provider_id", "account_id", "hash",
+                            "data" },
+                    new int[] { TYPE_INTEGER, TYPE_TEXT, TYPE_INTEGER, TYPE_INTEGER, TYPE_TEXT,
+                            TYPE_BLOB },
+                    16),
+            new Table("messages", "account",
+                    new String[] { "_id", "packet_id", "contact", "provider", "account",
+                            "body", "date", "type", "err_code", "err_msg" },
+                    new int[] { TYPE_INTEGER, TYPE_TEXT, TYPE_TEXT, TYPE_INTEGER, TYPE_INTEGER,
+                            TYPE_TEXT, TYPE_INTEGER, TYPE_INTEGER, TYPE_INTEGER, TYPE_TEXT },
+                    200),
+    };
+
+    private BulkExporter() {
+    }
+
+    /**
+     * @return the table that can be exported under that name, or null.
+     */
+    static Table getTable(String name) {
+        for (Table table : TABLES) {
+            if (table.mName.equals(name)) {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tells how many bytes the export of a table takes at least: the bytes of its text and
+     * blobs, counting one byte per character of text, and two bytes per value and one per
+     * row on top of them.
+     *
+     * @param account the account to export the rows of, or null for all of them.
+     */
+    static long estimateSize(SQLiteDatabase db, Table table, Long account) {
+        StringBuilder sql = new StringBuilder("SELECT COUNT(*)");
+        for (int i = 0; i < table.mColumns.length; i++) {
+            if (table.mTypes[i] != TYPE_INTEGER) {
+                sql.append(", TOTAL(LENGTH(").append(table.mColumns[i]).append("))");
+            }
+        }
+        sql.append(" FROM ").append(table.mName);
+        if (account != null) {
+            sql.append(" WHERE ").append(table.mAccountColumn).append('=').append(account);
+        }
+
+        Cursor c = db.rawQuery(sql.toString(), null);
+        try {
+            if (!c.moveToFirst()) {
+                return 0;
+            }
+            long size = c.getLong(0) * (1 + 2 * table.mColumns.length);
+            for (int i = 1; i < c.getColumnCount(); i++) {
+                size += c.getLong(i);
+            }
+            return size;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Writes the rows of a table to a file, in _id order. The rows are read in one
+     * transaction, so they're all from the same state of the table.
+     *
+     * @param account the account to export the rows of, or null for all of them.
+     * @return the number of rows written.
+     */
+    static int export(SQLiteDatabase db, Table table, Long account, File file)
+            throws IOException {
+        // nothing is written, there's nothing to commit at the end
+        db.beginTransaction();
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), 8192));
+            try {
+                writeHeader(out, table);
+
+                String selection = "_id>?";
+                if (account != null) {
+                    selection += " AND " + table.mAccountColumn + "=" + account;
+                }
+                String limit = Integer.toString(table.mPageSize);
+                String[] args = new String[] { "0" };
+
+                int count = 0;
+                int n;
+                do {
+                    n = 0;
+                    Cursor c = db.query(table.mName, table.mColumns, selection, args,
+                            null, null, "_id ASC", limit);
+                    try {
+                        while (c.moveToNext()) {
+                            writeRow(out, table, c);
+                            args[0] = c.getString(0);
+                            n++;
+                        }
+                    } finally {
+                        c.close();
+                    }
+                    count += n;
+                } while (n == table.mPageSize);
+
+                out.write(0);
+                writeVarint(out, count);
+                return count;
+            } finally {
+                out.close();
+            }
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, Table table) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeString(out, table.mName);
+        writeVarint(out, table.mColumns.length);
+        for (int i = 0; i < table.mColumns.length; i++) {
+            writeString(out, table.mColumns[i]);
+            out.write(table.mTypes[i]);
+        }
+    }
+
+    private static void writeRow(DataOutputStream out, Table table, Cursor c)
+            throws IOException {
+        out.write(1);
+        for (int i = 0; i < table.mTypes.length; i++) {
+            if (c.isNull(i)) {
+                out.write(0);
+                continue;
+            }
+            out.write(1);
+            switch (table.mTypes[i]) {
+                case TYPE_INTEGER:
+                    long value = c.getLong(i);
+                    writeVarint(out, (value << 1) ^ (value >> 63));
+                    break;
+
+                case TYPE_TEXT:
+                    writeString(out, c.getString(i));
+                    break;
+
+                default:
+                    writeBytes(out, c.getBlob(i));
+                    break;
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes("UTF-8"));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeVarint(DataOutputStream out, long n) throws IOException {
+        while ((n & ~0x7fL) != 0) {
+            out.write((int) ((n & 0x7f) | 0x80));
+            n >>>= 7;
+        }
+        out.write((int) n);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.Map;
+
+/**
+ * The recent changes to the roster tables (contacts, presence and chats), so an observer
+ * can catch up on what changed since it last looked instead of querying everything again.
+ *
+ * Every change gets the next sequence number. Rows of contacts are named by their _id, and
+ * rows of presence and chats by their contact_id, as in the presence/# and chats/# URIs.
+ * A change that can't be told row by row is recorded as a {@link #RESET} of its table,
+ * after which the observer has to query the table again.
+ *
+ * The provider records a change once the transaction that made it commits, so the feed
+ * never lists a change that was rolled back, and changes are numbered in commit order.
+ *
+ * Only the last {@link #CAPACITY} changes are kept, in a ring. An observer that asks for
+ * changes older than that, or for sequence numbers from before the provider was restarted,
+ * gets a single {@link #RESET} of all the tables.
+ */
+public final class ChangeFeed {
+    /**
+     * The sequence number of the change.
+     */
+    public static final String SEQUENCE = "_id";
+    /**
+     * The table that changed, or null for all of them.
+     */
+    public static final String TABLE = "table_name";
+    /**
+     * What changed, one of {@link #INSERT}, {@link #UPDATE}, {@link #DELETE} or
+     * {@link #RESET}.
+     */
+    public static final String CHANGE = "change";
+    /**
+     * The id of the row that changed, null for a {@link #RESET}.
+     */
+    public static final String ROW_ID = "row_id";
+    /**
+     * The columns written, separated by commas, null for a {@link #DELETE} or {@link #RESET}.
+     */
+    public static final String COLUMNS = "changed_columns";
+
+    public static final int INSERT = 1;
+    public static final int UPDATE = 2;
+    public static final int DELETE = 3;
+    public static final int RESET = 4;
+
+    /**
+     * The query parameter restricting the changes to one table.
+     */
+    public static final String TABLE_PARAMETER = "table";
+
+    static final int CAPACITY = 1024;
+
+    private static final String[] CURSOR_COLUMNS = new String[] {
+            SEQUENCE, TABLE, CHANGE, ROW_ID, COLUMNS,
+    };
+
+    private static final String[] TRACKED_TABLES = new String[] {
+            "contacts", "presence", "chats",
+    };
+
+    // the change with sequence number n is at n % CAPACITY
+    private final String[] mTables = new String[CAPACITY];
+    private final byte[] mChanges = new byte[CAPACITY];
+    private final long[] mRowIds = new long[CAPACITY];
+    private final String[] mColumns = new String[CAPACITY];
+    private long mLastSequence;
+
+    static boolean isTracked(String table) {
+        for (String tracked : TRACKED_TABLES) {
+            if (tracked.equals(table)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records the change of one row.
+     *
+     * @param columns the columns written, as returned by {@link #joinColumns}, or null.
+     */
+    synchronized void record(String table, int change, long rowId, String columns) {
+        add(table, change, rowId, columns);
+    }
+
+    /**
+     * Records that a table changed in a way that can't be told row by row.
+     */
+    synchronized void reset(String table) {
+        add(table, RESET, 0, null);
+    }
+
+    synchronized long getLastSequence() {
+        return mLastSequence;
+    }
+
+    /**
+     * Lists the changes made after a sequence number, oldest first.
+     *
+     * @param table the table to list the changes of, or null for all of them.
+     * @return a cursor with the {@link #SEQUENCE}, {@link #TABLE}, {@link #CHANGE},
+     *         {@link #ROW_ID} and {@link #COLUMNS} of the changes.
+     */
+    synchronized Cursor query(long since, String table) {
+        long oldest = Math.max(1, mLastSequence - CAPACITY + 1);
+        if (since > mLastSequence || since < oldest - 1) {
+            // the changes are gone, or the sequence numbers are from before a restart
+            MatrixCursor c = new MatrixCursor(CURSOR_COLUMNS, 1);
+            c.addRow(new Object[] { mLastSequence, null, RESET, null, null });
+            return c;
+        }
+
+        MatrixCursor c = new MatrixCursor(CURSOR_COLUMNS, (int) (mLastSequence - since));
+        for (long sequence = since + 1; sequence <= mLastSequence; sequence++) {
+            int i = (int) (sequence % CAPACITY);
+            if (table != null && !table.equals(mTables[i])) {
+                continue;
+            }
+            boolean reset = mChanges[i] == RESET;
+            c.addRow(new Object[] {
+                    sequence, mTables[i], (int) mChanges[i],
+                    reset ? null : mRowIds[i], mColumns[i] });
+        }
+        return c;
+    }
+
+    private void add(String table, int change, long rowId, String columns) {
+        mLastSequence++;
+        int i = (int) (mLastSequence % CAPACITY);
+        mTables[i] = table;
+        mChanges[i] = (byte) change;
+        mRowIds[i] = rowId;
+        mColumns[i] = columns;
+    }
+
+    /**
+     * @return the names of the columns of the values, separated by commas.
+     */
+    static String joinColumns(ContentValues values) {
+        StringBuilder buf = new StringBuilder();
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            if (buf.length() > 0) {
+                buf.append(',');
+            }
+            buf.append(entry.getKey());
+        }
+        return buf.toString();
+    }
+}
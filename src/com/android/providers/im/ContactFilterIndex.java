@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Im;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * An in-memory index of the words in the usernames and nicknames of the contacts, used to
+ * filter a contact list as the user types.
+ *
+ * Each account has its own sorted array of words, built from the contacts table the first
+ * time the account is filtered. New contacts are appended to it as they are inserted, and
+ * the array is sorted again on the next filter. Changes that can't be followed one contact
+ * at a time drop the index of the account, and it's built again when it's next needed.
+ *
+ * The changes are applied once they're committed, and the database is read outside of the
+ * lock of the index, so a filter never holds the index while it waits for a transaction to
+ * end. An index read while a change was being applied is used for that filter only, since
+ * it may have missed the change.
+ */
+final class ContactFilterIndex {
+    static final String[] COLUMNS = new String[] {
+            Im.Contacts._ID,
+            Im.Contacts.USERNAME,
+            Im.Contacts.NICKNAME,
+    };
+
+    private static final String[] CONTACT_PROJECTION = new String[] {
+            Im.Contacts._ID,        // 0
+            Im.Contacts.USERNAME,   // 1
+            Im.Contacts.NICKNAME,   // 2
+    };
+
+    private static final String NON_BLOCKED_CONTACTS_SELECTION =
+            Im.Contacts.ACCOUNT + "=? AND (" + Im.Contacts.TYPE + " IS NULL OR "
+            + Im.Contacts.TYPE + "!=" + Im.Contacts.TYPE_BLOCKED + ")";
+
+    private static final class Contact {
+        final long mId;
+        final String mUsername;
+        final String mNickname;
+        final String mSortKey;
+        boolean mRemoved;
+
+        Contact(long id, String username, String nickname) {
+            mId = id;
+            mUsername = username;
+            mNickname = nickname;
+            mSortKey = (TextUtils.isEmpty(nickname) ? (username == null ? "" : username)
+                    : nickname).toLowerCase(Locale.US);
+        }
+    }
+
+    private static final class Word {
+        final String mText;
+        final Contact mContact;
+
+        Word(String text, Contact contact) {
+            mText = text;
+            mContact = contact;
+        }
+    }
+
+    private static final Comparator<Word> WORD_ORDER = new Comparator<Word>() {
+        public int compare(Word a, Word b) {
+            return a.mText.compareTo(b.mText);
+        }
+    };
+
+    // the order the contacts are listed in
+    private static final Comparator<Contact> DISPLAY_ORDER = new Comparator<Contact>() {
+        public int compare(Contact a, Contact b) {
+            int result = a.mSortKey.compareTo(b.mSortKey);
+            if (result == 0 && a.mId != b.mId) {
+                result = a.mId < b.mId ? -1 : 1;
+            }
+            return result;
+        }
+    };
+
+    private static final class AccountIndex {
+        final ArrayList<Word> mWords = new ArrayList<Word>();
+        final HashMap<Long, Contact> mContacts = new HashMap<Long, Contact>();
+        boolean mSorted;
+        boolean mHasRemoved;
+    }
+
+    private final HashMap<Long, AccountIndex> mAccounts = new HashMap<Long, AccountIndex>();
+    // counts the changes, to tell whether one was applied while an account was being read
+    private int mGeneration;
+
+    /**
+     * Adds a new contact to the index of its account, if the account has been indexed.
+     */
+    synchronized void addContact(long account, long id, String username, String nickname,
+            int type) {
+        mGeneration++;
+        AccountIndex index = mAccounts.get(account);
+        if (index != null && type != Im.Contacts.TYPE_BLOCKED) {
+            add(index, new Contact(id, username, nickname));
+        }
+    }
+
+    /**
+     * Removes a deleted contact from the index.
+     */
+    synchronized void removeContact(long id) {
+        mGeneration++;
+        for (AccountIndex index : mAccounts.values()) {
+            if (remove(index, id)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the index of an account, after its contacts changed in a way the index can't
+     * follow.
+     */
+    synchronized void invalidate(long account) {
+        mGeneration++;
+        mAccounts.remove(account);
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mAccounts.clear();
+    }
+
+    /**
+     * Finds the contacts of an account that have a word in their username or nickname
+     * starting with the prefix, ignoring case.
+     *
+     * @return a cursor with the {@link #COLUMNS} of the contacts, in display order.
+     */
+    Cursor filter(SQLiteDatabase db, long account, String prefix) {
+        int generation;
+        synchronized (this) {
+            AccountIndex index = mAccounts.get(account);
+            if (index != null) {
+                return filter(index, prefix);
+            }
+            generation = mGeneration;
+        }
+
+        AccountIndex index = load(db, account);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mAccounts.put(account, index);
+            }
+            return filter(index, prefix);
+        }
+    }
+
+    private static Cursor filter(AccountIndex index, String prefix) {
+        prepare(index);
+
+        ArrayList<Contact> matches = new ArrayList<Contact>();
+        prefix = prefix.toLowerCase(Locale.US);
+        ArrayList<Word> words = index.mWords;
+        final int N = words.size();
+        HashSet<Contact> seen = new HashSet<Contact>();
+        for (int i = lowerBound(words, prefix); i < N; i++) {
+            Word word = words.get(i);
+            if (!word.mText.startsWith(prefix)) {
+                break;
+            }
+            if (!word.mContact.mRemoved && seen.add(word.mContact)) {
+                matches.add(word.mContact);
+            }
+        }
+        Collections.sort(matches, DISPLAY_ORDER);
+
+        MatrixCursor c = new MatrixCursor(COLUMNS, matches.size());
+        for (Contact contact : matches) {
+            c.addRow(new Object[] { contact.mId, contact.mUsername, contact.mNickname });
+        }
+        return c;
+    }
+
+    private static AccountIndex load(SQLiteDatabase db, long account) {
+        AccountIndex index = new AccountIndex();
+        Cursor c = db.query("contacts", CONTACT_PROJECTION, NON_BLOCKED_CONTACTS_SELECTION,
+                new String[] { Long.toString(account) }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                add(index, new Contact(c.getLong(0), c.getString(1), c.getString(2)));
+            }
+        } finally {
+            c.close();
+        }
+        return index;
+    }
+
+    // replaces the contact if it's already in the index, e.g. when it was read from the
+    // table before its insert was applied
+    private static void add(AccountIndex index, Contact contact) {
+        remove(index, contact.mId);
+        index.mContacts.put(contact.mId, contact);
+        HashSet<String> words = new HashSet<String>();
+        addWords(words, contact.mUsername);
+        addWords(words, contact.mNickname);
+        for (String word : words) {
+            index.mWords.add(new Word(word, contact));
+        }
+        index.mSorted = false;
+    }
+
+    private static boolean remove(AccountIndex index, long id) {
+        Contact contact = index.mContacts.remove(id);
+        if (contact == null) {
+            return false;
+        }
+        contact.mRemoved = true;
+        index.mHasRemoved = true;
+        return true;
+    }
+
+    // the whole name, and each run of letters and digits in it
+    private static void addWords(HashSet<String> words, String name) {
+        if (TextUtils.isEmpty(name)) {
+            return;
+        }
+        name = name.toLowerCase(Locale.US);
+        words.add(name);
+        final int N = name.length();
+        int start = -1;
+        for (int i = 0; i <= N; i++) {
+            boolean inWord = i < N && Character.isLetterOrDigit(name.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(name.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    private static void prepare(AccountIndex index) {
+        if (index.mHasRemoved) {
+            Iterator<Word> it = index.mWords.iterator();
+            while (it.hasNext()) {
+                if (it.next().mContact.mRemoved) {
+                    it.remove();
+                }
+            }
+            index.mHasRemoved = false;
+        }
+        if (!index.mSorted) {
+            Collections.sort(index.mWords, WORD_ORDER);
+            index.mSorted = true;
+        }
+    }
+
+    private static int lowerBound(ArrayList<Word> words, String prefix) {
+        int low = 0;
+        int high = words.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (words.get(mid).mText.compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -17,28 +17,38 @@
 package com.android.providers.im;
 
 import android.content.ContentProvider;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.content.ContentResolver;
+import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
-import android.database.sqlite.SQLiteConstraintException;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.os.StatFs;
+import android.os.SystemClock;
 import android.provider.Im;
 import android.text.TextUtils;
 import android.util.Log;
 
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A content provider for IM
@@ -74,13 +84,14 @@ public class ImProvider extends ContentProvider {
     private static final String TABLE_BRANDING_RESOURCE_MAP_CACHE = "brandingResMapCache";
 
     private static final String DATABASE_NAME = "im.db";
-    private static final int DATABASE_VERSION = 47;
+    private static final int DATABASE_VERSION = 50;
 
     protected static final int MATCH_PROVIDERS = 1;
     protected static final int MATCH_PROVIDERS_BY_ID = 2;
     protected static final int MATCH_PROVIDERS_WITH_ACCOUNT = 3;
     protected static final int MATCH_ACCOUNTS = 10;
     protected static final int MATCH_ACCOUNTS_BY_ID = 11;
+    protected static final int MATCH_ACCOUNT_PURGE = 12;
     protected static final int MATCH_CONTACTS = 18;
     protected static final int MATCH_CONTACTS_JOIN_PRESENCE = 19;
     protected static final int MATCH_CONTACTS_BAREBONE = 20;
@@ -92,6 +103,7 @@ public class ImProvider extends ContentProvider {
     protected static final int MATCH_OFFLINE_CONTACTS_BY_PROVIDER = 26;
     protected static final int MATCH_CONTACT = 27;
     protected static final int MATCH_CONTACTS_BULK = 28;
+    protected static final int MATCH_RECENT_CONTACTS_BY_PROVIDER = 29;
     protected static final int MATCH_ONLINE_CONTACT_COUNT = 30;
     protected static final int MATCH_BLOCKED_CONTACTS = 31;
     protected static final int MATCH_CONTACTLISTS = 32;
@@ -101,17 +113,20 @@ public class ImProvider extends ContentProvider {
     protected static final int MATCH_BLOCKEDLIST_BY_PROVIDER = 36;
     protected static final int MATCH_CONTACTS_ETAGS = 37;
     protected static final int MATCH_CONTACTS_ETAG = 38;
+    protected static final int MATCH_FILTER_CONTACTS_BY_PROVIDER = 39;
     protected static final int MATCH_PRESENCE = 40;
     protected static final int MATCH_PRESENCE_ID = 41;
     protected static final int MATCH_PRESENCE_BY_ACCOUNT = 42;
     protected static final int MATCH_PRESENCE_SEED_BY_ACCOUNT = 43;
     protected static final int MATCH_PRESENCE_BULK = 44;
+    protected static final int MATCH_ORDERED_CONTACTS_BY_PROVIDER = 45;
     protected static final int MATCH_MESSAGES = 50;
     protected static final int MATCH_MESSAGES_BY_CONTACT = 51;
     protected static final int MATCH_MESSAGE = 52;
     protected static final int MATCH_GROUP_MESSAGES = 53;
     protected static final int MATCH_GROUP_MESSAGE_BY = 54;
     protected static final int MATCH_GROUP_MESSAGE = 55;
+    protected static final int MATCH_MESSAGE_USAGE_BY_ACCOUNT = 56;
     protected static final int MATCH_GROUP_MEMBERS = 58;
     protected static final int MATCH_GROUP_MEMBERS_BY_GROUP = 59;
     protected static final int MATCH_AVATARS = 60;
@@ -122,9 +137,11 @@ public class ImProvider extends ContentProvider {
     protected static final int MATCH_CHATS_ID = 72;
     protected static final int MATCH_SESSIONS = 80;
     protected static final int MATCH_SESSIONS_BY_PROVIDER = 81;
+    protected static final int MATCH_SESSIONS_REPLACE = 82;
     protected static final int MATCH_PROVIDER_SETTINGS = 90;
     protected static final int MATCH_PROVIDER_SETTINGS_BY_ID = 91;
     protected static final int MATCH_PROVIDER_SETTINGS_BY_ID_AND_NAME = 92;
+    protected static final int MATCH_BULK_PROVIDER_SETTINGS = 93;
     protected static final int MATCH_INVITATIONS = 100;
     protected static final int MATCH_INVITATION  = 101;
     protected static final int MATCH_OUTGOING_RMQ_MESSAGES = 110;
@@ -133,7 +150,15 @@ public class ImProvider extends ContentProvider {
     protected static final int MATCH_LAST_RMQ_ID = 113;
     protected static final int MATCH_ACCOUNTS_STATUS = 114;
     protected static final int MATCH_ACCOUNT_STATUS = 115;
+    protected static final int MATCH_OUTGOING_RMQ_ACK = 116;
+    protected static final int MATCH_RESERVE_RMQ_IDS = 117;
+    protected static final int MATCH_OUTGOING_RMQ_COMPACT = 118;
+    protected static final int MATCH_CACHED_ACCOUNTS_STATUS = 119;
+    protected static final int MATCH_CACHED_ACCOUNT_STATUS = 121;
     protected static final int MATCH_BRANDING_RESOURCE_MAP_CACHE = 120;
+    protected static final int MATCH_SEARCH = 130;
+    protected static final int MATCH_CHANGES = 140;
+    protected static final int MATCH_EXPORT = 150;
 
 
     protected final UriMatcher mUrlMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -162,6 +187,25 @@ public class ImProvider extends ContentProvider {
                     " LEFT OUTER JOIN avatars ON (contacts.username = avatars.contact" +
                     " AND contacts.account = avatars.account_id)";
 
+    // starts from chats, so the recent chats can be read off the last_message_date index
+    private static final String CHAT_JOIN_CONTACT_PRESENCE_AVATAR_TABLE =
+            "chats JOIN contacts ON (chats.contact_id = contacts._id)" +
+                    " LEFT OUTER JOIN presence ON (contacts._id = presence.contact_id)" +
+                    " LEFT OUTER JOIN avatars ON (contacts.username = avatars.contact" +
+                    " AND contacts.account = avatars.account_id)";
+
+    /**
+     * The keep_signed_in flag of the active account, a column of the providers with
+     * accounts query that Im.Provider doesn't define.
+     */
+    public static final String PROVIDER_ACCOUNT_KEEP_SIGNED_IN = "account_keepSignedIn";
+
+    /**
+     * The query parameter for the number of recent chats to return.
+     */
+    public static final String RECENT_CONTACTS_LIMIT = "limit";
+    private static final int DEFAULT_RECENT_CONTACTS_LIMIT = 10;
+
     private static final String BLOCKEDLIST_JOIN_AVATAR_TABLE =
             "blockedList LEFT OUTER JOIN avatars ON (blockedList.username = avatars.contact" +
             " AND blockedList.account = avatars.account_id)";
@@ -178,19 +222,102 @@ public class ImProvider extends ContentProvider {
     private static final String BLOCKED_CONTACTS_WHERE_CLAUSE =
         "(contacts." + Im.Contacts.TYPE + "=" + Im.Contacts.TYPE_BLOCKED + ")";
 
-    private static final String CONTACT_ID = TABLE_CONTACTS + '.' + Im.Contacts._ID;
-    private static final String PRESENCE_CONTACT_ID = TABLE_PRESENCE + '.' + Im.Presence.CONTACT_ID;
+    // The account of the contact a presence or chat row belongs to, copied into the row so
+    // the rows of an account can be found through an index instead of a contacts subquery.
+    // Not named "account", which would be ambiguous in the queries joining contacts.
+    private static final String PRESENCE_ACCOUNT = "presence_account";
+    private static final String CHAT_ACCOUNT = "chat_account";
 
     protected SQLiteOpenHelper mOpenHelper;
     private final String mDatabaseName;
     private final int mDatabaseVersion;
 
-    private final String[] BACKFILL_PROJECTION = {
-        Im.Chats._ID, Im.Chats.SHORTCUT, Im.Chats.LAST_MESSAGE_DATE
+    private static final String[] CHAT_ID_PROJECTION = { Im.Chats._ID };
+
+    private final QuickSwitchSlots mQuickSwitchSlots = new QuickSwitchSlots();
+    private MessageTrimmer mMessageTrimmer;
+    private boolean mPersistMessages;
+    private final SearchIndex mSearchIndex = new SearchIndex();
+    private final ContactFilterIndex mContactFilterIndex = new ContactFilterIndex();
+    private final PresenceOrderIndex mPresenceOrderIndex = new PresenceOrderIndex();
+    private final ChangeFeed mChangeFeed = new ChangeFeed();
+
+    // the changes to the in-memory state made by the write transaction of the calling
+    // thread, applied once it commits, see afterCommit()
+    private final ThreadLocal<ArrayList<Runnable>> mPendingChanges =
+            new ThreadLocal<ArrayList<Runnable>>();
+    // makes the transactions apply their changes in the order they commit
+    private final Object mCommitLock = new Object();
+
+    // whether the group chat tables exist in the transient database, see ensureGroupChatTables()
+    private volatile boolean mGroupChatTablesCreated;
+    // how long creating the transient tables took, when the database was last opened
+    private volatile long mTransientTablesMillis;
+    private final OutgoingRmqQueue mOutgoingRmqQueue = new OutgoingRmqQueue();
+    private final AccountStatusCache mAccountStatusCache = new AccountStatusCache();
+    private final ProviderSettingsCache mProviderSettingsCache = new ProviderSettingsCache();
+    private SessionCookieStore mSessionCookieStore;
+
+    /**
+     * The columns of outgoingRmqMessages given back when the caller doesn't name them. The
+     * payload column is left out, its contents are decoded into data.
+     */
+    private static final String[] OUTGOING_RMQ_COLUMNS = new String[] {
+            Im.OutgoingRmq._ID,
+            Im.OutgoingRmq.RMQ_ID,
+            Im.OutgoingRmq.PROTOBUF_TAG,
+            Im.OutgoingRmq.TIMESTAMP,
+            Im.OutgoingRmq.DATA,
     };
 
-    private final String[] FIND_SHORTCUT_PROJECTION = {
-        Im.Chats._ID, Im.Chats.SHORTCUT
+    /**
+     * The columns of the lastRmqId/reserve/# query: the first of the reserved rmq ids,
+     * and how many were reserved.
+     */
+    private static final String[] RESERVED_RMQ_IDS_COLUMNS = new String[] {
+            Im.LastRmqId.RMQ_ID,
+            Im.LastRmqId._COUNT,
+    };
+
+    /**
+     * The columns of the bulkProviderSettings/# query, one row per setting.
+     */
+    private static final String[] BULK_PROVIDER_SETTINGS_COLUMNS = new String[] {
+            Im.ProviderSettings.NAME,
+            Im.ProviderSettings.VALUE,
+    };
+
+    /**
+     * The query parameters of the search URI: the words to search for, the account to
+     * search (all of them if missing), and the maximum number of hits.
+     */
+    public static final String SEARCH_QUERY = "q";
+    public static final String SEARCH_ACCOUNT = "account";
+    public static final String SEARCH_LIMIT = "limit";
+    private static final int DEFAULT_SEARCH_LIMIT = 50;
+
+    // the page cache size of the database, when the message history is kept on disk
+    private static final int PERSISTENT_MESSAGES_CACHE_SIZE = 500;
+
+    /**
+     * The columns of the messages/usage/# query, which reports how much of the in-memory
+     * database an account's messages take.
+     */
+    public static final String USAGE_ACCOUNT = "account";
+    public static final String USAGE_MESSAGES = "messages";
+    public static final String USAGE_GROUP_MESSAGES = "group_messages";
+    public static final String USAGE_BODY_SIZE = "body_size";
+
+    /**
+     * The columns of the accounts/purge/# query, which purges an account like a delete of
+     * the same URI does, and reports the number of rows removed from each table.
+     */
+    public static final String PURGE_TABLE = "table_name";
+    public static final String PURGE_ROWS = "rows";
+
+    private static final String[] PURGE_REPORT_COLUMNS = new String[] {
+            PURGE_TABLE,
+            PURGE_ROWS,
     };
 
     private class DatabaseHelper extends SQLiteOpenHelper {
@@ -226,6 +353,7 @@ public class ImProvider extends ContentProvider {
                     ");");
 
             createContactsTables(db);
+            createContactsAccountIndex(db);
 
             db.execSQL("CREATE TABLE " + TABLE_AVATARS + " (" +
                     "_id INTEGER PRIMARY KEY," +
@@ -250,9 +378,12 @@ public class ImProvider extends ContentProvider {
                     "rmq_id INTEGER," +
                     "type INTEGER," +
                     "ts INTEGER," +
-                    "data TEXT" +
+                    "data TEXT," +
+                    "payload BLOB" +
                     ");");
 
+            createOutgoingRmqIndex(db);
+
             db.execSQL("create TABLE " + TABLE_LAST_RMQ_ID + " (" +
                     "_id INTEGER PRIMARY KEY," +
                     "rmq_id INTEGER" +
@@ -352,6 +483,56 @@ public class ImProvider extends ContentProvider {
                         db.endTransaction();
                     }
 
+                case 47:
+                    if (newVersion <= 47) {
+                        return;
+                    }
+
+                    db.beginTransaction();
+                    try {
+                        createOutgoingRmqIndex(db);
+                        db.setTransactionSuccessful();
+                    } catch (Throwable ex) {
+                        Log.e(LOG_TAG, ex.getMessage(), ex);
+                        break; // force to destroy all old data;
+                    } finally {
+                        db.endTransaction();
+                    }
+
+                case 48:
+                    if (newVersion <= 48) {
+                        return;
+                    }
+
+                    db.beginTransaction();
+                    try {
+                        // the messages already queued keep their payload in the data column
+                        db.execSQL("ALTER TABLE " + TABLE_OUTGOING_RMQ_MESSAGES
+                                + " ADD COLUMN payload BLOB;");
+                        db.setTransactionSuccessful();
+                    } catch (Throwable ex) {
+                        Log.e(LOG_TAG, ex.getMessage(), ex);
+                        break; // force to destroy all old data;
+                    } finally {
+                        db.endTransaction();
+                    }
+
+                case 49:
+                    if (newVersion <= 49) {
+                        return;
+                    }
+
+                    db.beginTransaction();
+                    try {
+                        createContactsAccountIndex(db);
+                        db.setTransactionSuccessful();
+                    } catch (Throwable ex) {
+                        Log.e(LOG_TAG, ex.getMessage(), ex);
+                        break; // force to destroy all old data;
+                    } finally {
+                        db.endTransaction();
+                    }
+
                     return;
             }
 
@@ -360,6 +541,18 @@ public class ImProvider extends ContentProvider {
             onCreate(db);
         }
 
+        // the queue is read and acked in rmq_id order
+        private void createOutgoingRmqIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS outgoingRmqMessagesRmqIdIndex ON " +
+                    TABLE_OUTGOING_RMQ_MESSAGES + " (rmq_id);");
+        }
+
+        // the contacts are looked up, and purged, by account
+        private void createContactsAccountIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS contactsAccountIndex ON " +
+                    TABLE_CONTACTS + " (account, username);");
+        }
+
         private void destroyOldTables(SQLiteDatabase db) {
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_PROVIDERS);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_ACCOUNTS);
@@ -460,6 +653,7 @@ public class ImProvider extends ContentProvider {
             }
 
             if (DBG) log("##### createTransientTables");
+            long start = SystemClock.uptimeMillis();
 
             // Create transient tables
             String cpDbName;
@@ -467,8 +661,20 @@ public class ImProvider extends ContentProvider {
             cpDbName = mTransientDbName + ".";
 
             // message table (since the UI currently doesn't require saving message history
-            // across IM sessions, store the message table in memory db only)
-            db.execSQL("CREATE TABLE IF NOT EXISTS " + cpDbName + TABLE_MESSAGES + " (" +
+            // across IM sessions, store the message table in memory db only, unless the
+            // product asks for the history to be kept)
+            String messagesDbName;
+            if (mPersistMessages) {
+                messagesDbName = "main.";
+                // keep more of the recent pages in memory
+                db.execSQL("PRAGMA main.cache_size = " + PERSISTENT_MESSAGES_CACHE_SIZE + ";");
+            } else {
+                messagesDbName = cpDbName;
+                // the in-memory table would be hidden behind a history kept before
+                db.execSQL("DROP TABLE IF EXISTS main." + TABLE_MESSAGES + ";");
+                db.execSQL("DROP TABLE IF EXISTS main.messagesFts;");
+            }
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + messagesDbName + TABLE_MESSAGES + " (" +
                     "_id INTEGER PRIMARY KEY," +
                     "packet_id TEXT UNIQUE," +
                     "contact TEXT," +
@@ -481,10 +687,15 @@ public class ImProvider extends ContentProvider {
                     "err_msg TEXT" +
                     ");");
 
+            // for trimming the messages of a conversation
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + messagesDbName + "messagesConversationIndex ON "
+                    + TABLE_MESSAGES + " (account, contact, date);");
+
             // presence
             db.execSQL("CREATE TABLE IF NOT EXISTS " + cpDbName + TABLE_PRESENCE + " ("+
                     "_id INTEGER PRIMARY KEY," +
                     "contact_id INTEGER UNIQUE," +
+                    "presence_account INTEGER," + // account of the contact
                     "jid_resource TEXT," +  // jid resource for the presence
                     "client_type INTEGER," + // client type
                     "priority INTEGER," +   // presence priority (XMPP)
@@ -492,25 +703,12 @@ public class ImProvider extends ContentProvider {
                     "status TEXT" +         // custom status
                     ");");
 
-            // group chat invitations
-            db.execSQL("CREATE TABLE IF NOT EXISTS " + cpDbName + TABLE_INVITATIONS + " (" +
-                    "_id INTEGER PRIMARY KEY," +
-                    "providerId INTEGER," +
-                    "accountId INTEGER," +
-                    "inviteId TEXT," +
-                    "sender TEXT," +
-                    "groupName TEXT," +
-                    "note TEXT," +
-                    "status INTEGER" +
-                    ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + cpDbName + "presenceAccountIndex ON "
+                    + TABLE_PRESENCE + " (presence_account);");
 
-            // group chat members
-            db.execSQL("CREATE TABLE IF NOT EXISTS " + cpDbName + TABLE_GROUP_MEMBERS + " (" +
-                    "_id INTEGER PRIMARY KEY," +
-                    "groupId INTEGER," +
-                    "username TEXT," +
-                    "nickname TEXT" +
-                    ");");
+            // the group chat invitations and members are created when they're first used,
+            // see ensureGroupChatTables()
+            mGroupChatTablesCreated = false;
 
             // group chat messages
             db.execSQL("CREATE TABLE IF NOT EXISTS " + cpDbName + TABLE_GROUP_MESSAGES + " (" +
@@ -525,10 +723,14 @@ public class ImProvider extends ContentProvider {
                     "err_msg TEXT" +
                     ");");
 
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + cpDbName + "groupMessagesGroupIndex ON "
+                    + TABLE_GROUP_MESSAGES + " (groupId, date);");
+
             // chat sessions, including single person chats and group chats
             db.execSQL("CREATE TABLE IF NOT EXISTS " + cpDbName + TABLE_CHATS + " ("+
                     "_id INTEGER PRIMARY KEY," +
                     "contact_id INTEGER UNIQUE," +
+                    "chat_account INTEGER," + // account of the contact
                     "jid_resource TEXT," +  // the JID resource for the user, only for non-group chats
                     "groupchat INTEGER," +   // 1 if group chat, 0 if not TODO: remove this column
                     "last_unread_message TEXT," +  // the last unread message
@@ -537,6 +739,22 @@ public class ImProvider extends ContentProvider {
                     "shortcut INTEGER" + // which of 10 slots (if any) this chat occupies
                     ");");
 
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + cpDbName + "chatsLastMessageDateIndex ON "
+                    + TABLE_CHATS + " (last_message_date);");
+
+            // serves the recent chats of an account in order, and the lookups by account
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + cpDbName + "chatsAccountDateIndex ON "
+                    + TABLE_CHATS + " (chat_account, last_message_date);");
+
+            // the chats table is brand new, so are its quick switch slots
+            mQuickSwitchSlots.clear();
+            mMessageTrimmer.clear();
+            mContactFilterIndex.invalidateAll();
+            mPresenceOrderIndex.invalidateAll();
+            mChangeFeed.reset(TABLE_PRESENCE);
+            mChangeFeed.reset(TABLE_CHATS);
+            mAccountStatusCache.invalidate();
+
             db.execSQL("CREATE TABLE IF NOT EXISTS " + cpDbName + TABLE_ACCOUNT_STATUS + " (" +
                     "_id INTEGER PRIMARY KEY," +
                     "account INTEGER UNIQUE," +
@@ -545,6 +763,11 @@ public class ImProvider extends ContentProvider {
                     ");"
             );
 
+            // the ids of the contacts being deleted, see collectDeletedContacts()
+            db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + TABLE_DELETED_CONTACTS + " (" +
+                    "_id INTEGER PRIMARY KEY" +
+                    ");");
+
             /* when we moved the contact table out of transient_db and into the main db, the
                contact_cleanup and group_cleanup triggers don't work anymore. It seems we can't
                create triggers that reference objects in a different database!
@@ -579,8 +802,12 @@ public class ImProvider extends ContentProvider {
                        " END");
             */
 
-            // only store the session cookies in memory right now. This means
-            // that we don't persist them across device reboot
+            // the session cookies are stored in memory, and only persisted across device
+            // reboot if mSessionCookieStore saves them on the side. Unlike the group chat
+            // tables, this one is created with the others: creating it restores the saved
+            // cookies, and the plugins read them as soon as an account signs in, which is
+            // often right after start. Here the restore runs on the prewarm thread instead
+            // of holding up that first sign in.
             db.execSQL("CREATE TABLE IF NOT EXISTS " + cpDbName + TABLE_SESSION_COOKIES + " ("+
                     "_id INTEGER PRIMARY KEY," +
                     "provider INTEGER," +
@@ -588,10 +815,67 @@ public class ImProvider extends ContentProvider {
                     "name TEXT," +
                     "value TEXT" +
                     ");");
+            mSessionCookieStore.onTableCreated(db, cpDbName);
+
+            mSearchIndex.create(db, cpDbName, messagesDbName);
 
+            mTransientTablesMillis = SystemClock.uptimeMillis() - start;
         }
     }
 
+    /**
+     * Creates the group chat invitations and members tables, if the URL is about to use
+     * them. Many sessions never join a group chat, so they're left out of the transient
+     * tables created when the database is opened. Called before the transaction of a write
+     * is started, so the tables aren't rolled back with it.
+     */
+    private void ensureGroupChatTables(Uri url) {
+        if (mGroupChatTablesCreated) {
+            return;
+        }
+        switch (mUrlMatcher.match(url)) {
+            case MATCH_INVITATIONS:
+            case MATCH_INVITATION:
+            case MATCH_GROUP_MEMBERS:
+            case MATCH_GROUP_MEMBERS_BY_GROUP:
+                createGroupChatTables(mOpenHelper.getWritableDatabase());
+                break;
+        }
+    }
+
+    private synchronized void createGroupChatTables(SQLiteDatabase db) {
+        if (mGroupChatTablesCreated || db.isReadOnly()) {
+            return;
+        }
+        String cpDbName = mTransientDbName + ".";
+
+        // group chat invitations
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + cpDbName + TABLE_INVITATIONS + " (" +
+                "_id INTEGER PRIMARY KEY," +
+                "providerId INTEGER," +
+                "accountId INTEGER," +
+                "inviteId TEXT," +
+                "sender TEXT," +
+                "groupName TEXT," +
+                "note TEXT," +
+                "status INTEGER" +
+                ");");
+
+        // group chat members
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + cpDbName + TABLE_GROUP_MEMBERS + " (" +
+                "_id INTEGER PRIMARY KEY," +
+                "groupId INTEGER," +
+                "username TEXT," +
+                "nickname TEXT" +
+                ");");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + cpDbName + "groupMembersGroupIndex ON "
+                + TABLE_GROUP_MEMBERS + " (groupId);");
+
+        if (DBG) log("created the group chat tables");
+        mGroupChatTablesCreated = true;
+    }
+
     static {
         sProviderAccountsProjectionMap = new HashMap<String, String>();
         sProviderAccountsProjectionMap.put(Im.Provider._ID,
@@ -616,6 +900,8 @@ public class ImProvider extends ContentProvider {
                 "accountStatus.presenceStatus AS account_presenceStatus");
         sProviderAccountsProjectionMap.put(Im.Provider.ACCOUNT_CONNECTION_STATUS,
                 "accountStatus.connStatus AS account_connStatus");
+        sProviderAccountsProjectionMap.put(PROVIDER_ACCOUNT_KEEP_SIGNED_IN,
+                "accounts.keep_signed_in AS " + PROVIDER_ACCOUNT_KEEP_SIGNED_IN);
 
         // contacts projection map
         sContactsProjectionMap = new HashMap<String, String>();
@@ -708,6 +994,7 @@ public class ImProvider extends ContentProvider {
 
         mUrlMatcher.addURI(authority, "accounts", MATCH_ACCOUNTS);
         mUrlMatcher.addURI(authority, "accounts/#", MATCH_ACCOUNTS_BY_ID);
+        mUrlMatcher.addURI(authority, "accounts/purge/#", MATCH_ACCOUNT_PURGE);
 
         mUrlMatcher.addURI(authority, "contacts", MATCH_CONTACTS);
         mUrlMatcher.addURI(authority, "contactsWithPresence", MATCH_CONTACTS_JOIN_PRESENCE);
@@ -715,6 +1002,9 @@ public class ImProvider extends ContentProvider {
         mUrlMatcher.addURI(authority, "contacts/#/#", MATCH_CONTACTS_BY_PROVIDER);
         mUrlMatcher.addURI(authority, "contacts/chatting", MATCH_CHATTING_CONTACTS);
         mUrlMatcher.addURI(authority, "contacts/chatting/#/#", MATCH_CHATTING_CONTACTS_BY_PROVIDER);
+        mUrlMatcher.addURI(authority, "contacts/recent/#/#", MATCH_RECENT_CONTACTS_BY_PROVIDER);
+        mUrlMatcher.addURI(authority, "contacts/filter/#/#/*", MATCH_FILTER_CONTACTS_BY_PROVIDER);
+        mUrlMatcher.addURI(authority, "contacts/ordered/#/#", MATCH_ORDERED_CONTACTS_BY_PROVIDER);
         mUrlMatcher.addURI(authority, "contacts/online/#/#", MATCH_ONLINE_CONTACTS_BY_PROVIDER);
         mUrlMatcher.addURI(authority, "contacts/offline/#/#", MATCH_OFFLINE_CONTACTS_BY_PROVIDER);
         mUrlMatcher.addURI(authority, "contacts/#", MATCH_CONTACT);
@@ -740,6 +1030,7 @@ public class ImProvider extends ContentProvider {
         mUrlMatcher.addURI(authority, "messages", MATCH_MESSAGES);
         mUrlMatcher.addURI(authority, "messagesBy/#/#/*", MATCH_MESSAGES_BY_CONTACT);
         mUrlMatcher.addURI(authority, "messages/#", MATCH_MESSAGE);
+        mUrlMatcher.addURI(authority, "messages/usage/#", MATCH_MESSAGE_USAGE_BY_ACCOUNT);
 
         mUrlMatcher.addURI(authority, "groupMessages", MATCH_GROUP_MESSAGES);
         mUrlMatcher.addURI(authority, "groupMessagesBy/#", MATCH_GROUP_MESSAGE_BY);
@@ -756,43 +1047,130 @@ public class ImProvider extends ContentProvider {
 
         mUrlMatcher.addURI(authority, "sessionCookies", MATCH_SESSIONS);
         mUrlMatcher.addURI(authority, "sessionCookiesBy/#/#", MATCH_SESSIONS_BY_PROVIDER);
+        mUrlMatcher.addURI(authority, "sessionCookiesBy/#/#/replace", MATCH_SESSIONS_REPLACE);
         mUrlMatcher.addURI(authority, "providerSettings", MATCH_PROVIDER_SETTINGS);
         mUrlMatcher.addURI(authority, "providerSettings/#", MATCH_PROVIDER_SETTINGS_BY_ID);
         mUrlMatcher.addURI(authority, "providerSettings/#/*",
                 MATCH_PROVIDER_SETTINGS_BY_ID_AND_NAME);
+        mUrlMatcher.addURI(authority, "bulkProviderSettings/#", MATCH_BULK_PROVIDER_SETTINGS);
 
         mUrlMatcher.addURI(authority, "invitations", MATCH_INVITATIONS);
         mUrlMatcher.addURI(authority, "invitations/#", MATCH_INVITATION);
 
         mUrlMatcher.addURI(authority, "outgoingRmqMessages", MATCH_OUTGOING_RMQ_MESSAGES);
         mUrlMatcher.addURI(authority, "outgoingRmqMessages/#", MATCH_OUTGOING_RMQ_MESSAGE);
+        mUrlMatcher.addURI(authority, "outgoingRmqMessages/ack/#", MATCH_OUTGOING_RMQ_ACK);
+        mUrlMatcher.addURI(authority, "outgoingRmqMessages/compact", MATCH_OUTGOING_RMQ_COMPACT);
         mUrlMatcher.addURI(authority, "outgoingHighestRmqId", MATCH_OUTGOING_HIGHEST_RMQ_ID);
         mUrlMatcher.addURI(authority, "lastRmqId", MATCH_LAST_RMQ_ID);
+        mUrlMatcher.addURI(authority, "lastRmqId/reserve/#", MATCH_RESERVE_RMQ_IDS);
 
         mUrlMatcher.addURI(authority, "accountStatus", MATCH_ACCOUNTS_STATUS);
         mUrlMatcher.addURI(authority, "accountStatus/#", MATCH_ACCOUNT_STATUS);
+        mUrlMatcher.addURI(authority, "accountStatus/cached", MATCH_CACHED_ACCOUNTS_STATUS);
+        mUrlMatcher.addURI(authority, "accountStatus/cached/#", MATCH_CACHED_ACCOUNT_STATUS);
 
         mUrlMatcher.addURI(authority, "brandingResMapCache", MATCH_BRANDING_RESOURCE_MAP_CACHE);
+
+        mUrlMatcher.addURI(authority, "search", MATCH_SEARCH);
+        mUrlMatcher.addURI(authority, "changes/#", MATCH_CHANGES);
+        mUrlMatcher.addURI(authority, "export/*", MATCH_EXPORT);
     }
 
     @Override
     public boolean onCreate() {
+        Resources res = getContext().getResources();
+        mPersistMessages = res.getBoolean(R.bool.persistMessageHistory);
+        int maxMessagesPerConversation = res.getInteger(R.integer.maxMessagesPerConversation);
+        long maxMessageAgeSeconds = res.getInteger(R.integer.maxMessageAgeMinutes) * 60L;
+        if (mPersistMessages) {
+            // the history kept on disk has its own, much larger, limits
+            mMessageTrimmer = new MessageTrimmer(maxMessagesPerConversation, maxMessageAgeSeconds,
+                    res.getInteger(R.integer.maxPersistedMessagesPerConversation),
+                    res.getInteger(R.integer.maxPersistedMessageAgeDays) * 24L * 60 * 60);
+        } else {
+            mMessageTrimmer = new MessageTrimmer(maxMessagesPerConversation, maxMessageAgeSeconds);
+        }
+        mSessionCookieStore = new SessionCookieStore(getContext(),
+                res.getBoolean(R.bool.persistSessionCookies));
         mOpenHelper = new DatabaseHelper(getContext());
+
+        // open the database, upgrading it and creating the transient tables, before the first
+        // caller needs it. A caller that comes earlier waits for the open in progress.
+        final long start = SystemClock.uptimeMillis();
+        Thread prewarm = new Thread("ImProvider prewarm") {
+            @Override
+            public void run() {
+                try {
+                    mOpenHelper.getWritableDatabase();
+                    Log.i(LOG_TAG, "database ready in " + (SystemClock.uptimeMillis() - start)
+                            + "ms, transient tables " + mTransientTablesMillis + "ms");
+                } catch (RuntimeException ex) {
+                    // the first caller will open it, and see the error
+                    Log.e(LOG_TAG, "prewarm failed", ex);
+                }
+            }
+        };
+        prewarm.start();
         return true;
     }
 
+    /**
+     * Inserts all the rows in one transaction, so a batch of messages is committed to
+     * the disk once. A batch of outgoing RMQ messages is enqueued as a whole, with
+     * their payloads encoded if it's inserted through the compact uri. A batch of session
+     * cookies inserted through sessionCookiesBy/#/#/replace replaces all the cookies of
+     * the account.
+     */
+    @Override
+    public final int bulkInsert(final Uri url, final ContentValues[] values) {
+        int count = 0;
+        ensureGroupChatTables(url);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            int match = mUrlMatcher.match(url);
+            if (match == MATCH_OUTGOING_RMQ_MESSAGES || match == MATCH_OUTGOING_RMQ_COMPACT) {
+                // hands out the rmq ids of the batch together with lastrmqid
+                count = mOutgoingRmqQueue.enqueue(db, values,
+                        match == MATCH_OUTGOING_RMQ_COMPACT);
+            } else if (match == MATCH_SESSIONS_REPLACE) {
+                count = replaceSessionCookies(db, url, values);
+            } else {
+                for (ContentValues row : values) {
+                    if (insertInternal(url, row) != null) {
+                        count++;
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endWriteTransaction(db, successful);
+        }
+        if (count > 0) {
+            getContext().getContentResolver()
+                    .notifyChange(url, null /* observer */, false /* sync */);
+        }
+        return count;
+    }
+
     @Override
     public final int update(final Uri url, final ContentValues values,
             final String selection, final String[] selectionArgs) {
 
         int result = 0;
+        ensureGroupChatTables(url);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean successful = false;
         db.beginTransaction();
         try {
             result = updateInternal(url, values, selection, selectionArgs);
             db.setTransactionSuccessful();
+            successful = true;
         } finally {
-            db.endTransaction();
+            endWriteTransaction(db, successful);
         }
         if (result > 0) {
             getContext().getContentResolver()
@@ -805,13 +1183,16 @@ public class ImProvider extends ContentProvider {
     public final int delete(final Uri url, final String selection,
             final String[] selectionArgs) {
         int result;
+        ensureGroupChatTables(url);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean successful = false;
         db.beginTransaction();
         try {
             result = deleteInternal(url, selection, selectionArgs);
             db.setTransactionSuccessful();
+            successful = true;
         } finally {
-            db.endTransaction();
+            endWriteTransaction(db, successful);
         }
         if (result > 0) {
             getContext().getContentResolver()
@@ -823,13 +1204,16 @@ public class ImProvider extends ContentProvider {
     @Override
     public final Uri insert(final Uri url, final ContentValues values) {
         Uri result;
+        ensureGroupChatTables(url);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean successful = false;
         db.beginTransaction();
         try {
             result = insertInternal(url, values);
             db.setTransactionSuccessful();
+            successful = true;
         } finally {
-            db.endTransaction();
+            endWriteTransaction(db, successful);
         }
         if (result != null) {
             getContext().getContentResolver()
@@ -838,6 +1222,146 @@ public class ImProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Applies a change to the in-memory state of the provider once the write transaction
+     * of the calling thread commits, so the change is never seen before the rows it follows
+     * and is dropped if they're rolled back. Outside of a transaction, applies it now.
+     */
+    private void afterCommit(SQLiteDatabase db, Runnable change) {
+        if (!db.inTransaction()) {
+            change.run();
+            return;
+        }
+        ArrayList<Runnable> changes = mPendingChanges.get();
+        if (changes == null) {
+            changes = new ArrayList<Runnable>();
+            mPendingChanges.set(changes);
+        }
+        changes.add(change);
+    }
+
+    /**
+     * Ends a write transaction. When the outermost transaction commits, the changes queued
+     * by {@link #afterCommit} are applied before any other transaction applies its own.
+     * When it's rolled back, they're dropped, and so is the state that was changed along
+     * with the rows. The session cookies are saved once the commit is applied, outside of
+     * the transaction.
+     *
+     * @param successful whether the transaction was marked successful.
+     */
+    private void endWriteTransaction(SQLiteDatabase db, boolean successful) {
+        if (!successful) {
+            // drop it before the next transaction can use it
+            mQuickSwitchSlots.invalidate();
+        }
+        boolean applied = false;
+        synchronized (mCommitLock) {
+            boolean committed = false;
+            try {
+                db.endTransaction();
+                committed = successful;
+            } finally {
+                if (!db.inTransaction()) {
+                    ArrayList<Runnable> changes = mPendingChanges.get();
+                    mPendingChanges.set(null);
+                    applied = committed;
+                    if (committed) {
+                        if (changes != null) {
+                            for (Runnable change : changes) {
+                                change.run();
+                            }
+                        }
+                    } else if (successful) {
+                        // the commit itself failed
+                        mQuickSwitchSlots.invalidate();
+                    }
+                }
+            }
+        }
+        if (applied) {
+            mSessionCookieStore.saveIfChanged(db);
+        }
+    }
+
+    /**
+     * Adds a new contact to the in-memory indexes of the contacts, once it's committed.
+     *
+     * @param mode the presence mode of the contact, or null if it has no presence.
+     */
+    private void indexContactAdded(SQLiteDatabase db, final long account, final long id,
+            final String username, final String nickname, final int type, final Integer mode) {
+        afterCommit(db, new Runnable() {
+            public void run() {
+                mContactFilterIndex.addContact(account, id, username, nickname, type);
+                mPresenceOrderIndex.addContact(account, id, username, nickname, type, mode);
+            }
+        });
+    }
+
+    /**
+     * Removes a deleted contact from the in-memory indexes of the contacts, once it's
+     * committed.
+     */
+    private void indexContactRemoved(SQLiteDatabase db, final long id) {
+        afterCommit(db, new Runnable() {
+            public void run() {
+                mContactFilterIndex.removeContact(id);
+                mPresenceOrderIndex.removeContact(id);
+            }
+        });
+    }
+
+    /**
+     * Drops the in-memory indexes of the contacts of an account, once the changes that
+     * can't be followed contact by contact are committed.
+     *
+     * @param account the account whose contacts changed, or null if it isn't known.
+     */
+    private void invalidateContactIndexes(SQLiteDatabase db, final Long account) {
+        afterCommit(db, new Runnable() {
+            public void run() {
+                if (account != null) {
+                    mContactFilterIndex.invalidate(account);
+                    mPresenceOrderIndex.invalidate(account);
+                } else {
+                    mContactFilterIndex.invalidateAll();
+                    mPresenceOrderIndex.invalidateAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves a contact to its new presence mode in the roster order, once it's committed.
+     *
+     * @param mode the new mode, or null if the contact no longer has a presence.
+     */
+    private void indexPresenceChanged(SQLiteDatabase db, final long id, final Integer mode) {
+        afterCommit(db, new Runnable() {
+            public void run() {
+                mPresenceOrderIndex.setPresence(id, mode);
+            }
+        });
+    }
+
+    /**
+     * Drops the roster order of an account, once the presence changes that can't be
+     * followed contact by contact are committed.
+     *
+     * @param account the account whose presence changed, or null if it isn't known.
+     */
+    private void invalidatePresenceOrder(SQLiteDatabase db, final Long account) {
+        afterCommit(db, new Runnable() {
+            public void run() {
+                if (account != null) {
+                    mPresenceOrderIndex.invalidate(account);
+                } else {
+                    mPresenceOrderIndex.invalidateAll();
+                }
+            }
+        });
+    }
+
     @Override
     public final Cursor query(final Uri url, final String[] projection,
             final String selection, final String[] selectionArgs,
@@ -847,6 +1371,7 @@ public class ImProvider extends ContentProvider {
 
     public Cursor queryInternal(Uri url, String[] projectionIn,
             String selection, String[] selectionArgs, String sort) {
+        ensureGroupChatTables(url);
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         StringBuilder whereClause = new StringBuilder();
         if(selection != null) {
@@ -854,6 +1379,8 @@ public class ImProvider extends ContentProvider {
         }
         String groupBy = null;
         String limit = null;
+        // the columns asked for, when the rmq payloads have to be decoded into data
+        String[] rmqColumns = null;
 
         // Generate the body of the query
         int match = mUrlMatcher.match(url);
@@ -867,6 +1394,14 @@ public class ImProvider extends ContentProvider {
             }
         }
 
+        if (selection == null && sort == null && (match == MATCH_PROVIDER_SETTINGS_BY_ID
+                || match == MATCH_PROVIDER_SETTINGS_BY_ID_AND_NAME)) {
+            Cursor c = queryCachedProviderSettings(url, projectionIn);
+            if (c != null) {
+                return c;
+            }
+        }
+
         switch (match) {
             case MATCH_PROVIDERS_BY_ID:
                 appendWhere(whereClause, Im.Provider._ID, "=", url.getPathSegments().get(1));
@@ -922,6 +1457,17 @@ public class ImProvider extends ContentProvider {
                 // blocked contacts can't have conversations.
                 break;
 
+            case MATCH_RECENT_CONTACTS_BY_PROVIDER:
+                // the most recent chats first, read from the account's range of the chats
+                // index rather than sorting the whole roster
+                qb.setTables(CHAT_JOIN_CONTACT_PRESENCE_AVATAR_TABLE);
+                qb.setProjectionMap(sContactsProjectionMap);
+                appendWhere(whereClause, "chats." + CHAT_ACCOUNT, "=", url.getLastPathSegment());
+                appendWhere(whereClause, "chats.last_message_date IS NOT NULL");
+                sort = "chats.last_message_date DESC";
+                limit = getRecentContactsLimit(url);
+                break;
+
             case MATCH_NO_CHATTING_CONTACTS_BY_PROVIDER:
                 buildQueryContactsByProvider(qb, whereClause, url);
                 appendWhere(whereClause, "chats.last_message_date IS NULL");
@@ -1015,6 +1561,34 @@ public class ImProvider extends ContentProvider {
                 appendWhere(whereClause, Im.Messages._ID, "=", url.getPathSegments().get(1));
                 break;
 
+            case MATCH_MESSAGE_USAGE_BY_ACCOUNT:
+                return queryMessageUsage(url);
+
+            case MATCH_SEARCH:
+                return querySearch(url);
+
+            case MATCH_CHANGES:
+                return queryChanges(url);
+
+            case MATCH_FILTER_CONTACTS_BY_PROVIDER:
+                return queryFilterContacts(url);
+
+            case MATCH_ORDERED_CONTACTS_BY_PROVIDER:
+                return queryOrderedContacts(url);
+
+            case MATCH_RESERVE_RMQ_IDS:
+                return reserveRmqIds(url);
+
+            case MATCH_ACCOUNT_PURGE:
+                return purgeAccountWithReport(url);
+
+            case MATCH_BULK_PROVIDER_SETTINGS:
+                return queryCachedProviderSettings(url, BULK_PROVIDER_SETTINGS_COLUMNS);
+
+            case MATCH_CACHED_ACCOUNTS_STATUS:
+            case MATCH_CACHED_ACCOUNT_STATUS:
+                return queryCachedAccountStatus(url, match == MATCH_CACHED_ACCOUNT_STATUS);
+
             case MATCH_INVITATIONS:
                 qb.setTables(TABLE_INVITATIONS);
                 break;
@@ -1081,6 +1655,14 @@ public class ImProvider extends ContentProvider {
                 break;
 
             case MATCH_SESSIONS_BY_PROVIDER:
+                if (selection == null && sort == null) {
+                    Cursor c = mSessionCookieStore.query(mOpenHelper.getReadableDatabase(),
+                            Long.parseLong(url.getPathSegments().get(2)), projectionIn);
+                    if (c != null) {
+                        c.setNotificationUri(getContext().getContentResolver(), url);
+                        return c;
+                    }
+                }
                 qb.setTables(TABLE_SESSION_COOKIES);
                 appendWhere(whereClause, Im.SessionCookies.ACCOUNT, "=", url.getPathSegments().get(2));
                 break;
@@ -1097,6 +1679,24 @@ public class ImProvider extends ContentProvider {
 
             case MATCH_OUTGOING_RMQ_MESSAGES:
                 qb.setTables(TABLE_OUTGOING_RMQ_MESSAGES);
+                // the payloads queued through the compact uri are given back in data, unless
+                // the caller reads them itself
+                if (!contains(projectionIn, RmqPayloadCodec.PAYLOAD)
+                        && (projectionIn == null
+                                || contains(projectionIn, Im.OutgoingRmq.DATA))) {
+                    rmqColumns = projectionIn == null ? OUTGOING_RMQ_COLUMNS : projectionIn;
+                    projectionIn = new String[rmqColumns.length + 1];
+                    System.arraycopy(rmqColumns, 0, projectionIn, 0, rmqColumns.length);
+                    projectionIn[rmqColumns.length] = RmqPayloadCodec.PAYLOAD;
+                }
+                break;
+
+            case MATCH_OUTGOING_RMQ_COMPACT:
+                // the order the queue is replayed in, see RmqPayloadCodec.replay()
+                qb.setTables(TABLE_OUTGOING_RMQ_MESSAGES);
+                if (TextUtils.isEmpty(sort)) {
+                    sort = Im.OutgoingRmq.RMQ_ID + " ASC";
+                }
                 break;
 
             case MATCH_OUTGOING_HIGHEST_RMQ_ID:
@@ -1135,11 +1735,15 @@ public class ImProvider extends ContentProvider {
         try {
             c = qb.query(db, projectionIn, whereClause.toString(), selectionArgs,
                     groupBy, null, sort, limit);
+            if (c != null && rmqColumns != null) {
+                c = decodeRmqPayloads(c, rmqColumns);
+            }
             if (c != null) {
                 switch(match) {
                 case MATCH_CHATTING_CONTACTS:
                 case MATCH_CONTACTS_BY_PROVIDER:
                 case MATCH_CHATTING_CONTACTS_BY_PROVIDER:
+                case MATCH_RECENT_CONTACTS_BY_PROVIDER:
                 case MATCH_ONLINE_CONTACTS_BY_PROVIDER:
                 case MATCH_OFFLINE_CONTACTS_BY_PROVIDER:
                 case MATCH_CONTACTS_BAREBONE:
@@ -1158,6 +1762,347 @@ public class ImProvider extends ContentProvider {
         return c;
     }
 
+    private static boolean contains(String[] columns, String column) {
+        if (columns != null) {
+            for (String c : columns) {
+                if (column.equals(c)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the rows of an outgoingRmqMessages query, with the encoded payloads decoded
+     * into the data column.
+     *
+     * @param columns the columns asked for. The cursor has them, then the payload column.
+     */
+    private static Cursor decodeRmqPayloads(Cursor c, String[] columns) {
+        try {
+            int dataColumn = -1;
+            for (int i = 0; i < columns.length; i++) {
+                if (Im.OutgoingRmq.DATA.equals(columns[i])) {
+                    dataColumn = i;
+                }
+            }
+            int payloadColumn = columns.length;
+
+            MatrixCursor result = new MatrixCursor(columns, c.getCount());
+            Object[] row = new Object[columns.length];
+            while (c.moveToNext()) {
+                for (int i = 0; i < columns.length; i++) {
+                    row[i] = c.getString(i);
+                }
+                if (dataColumn >= 0 && row[dataColumn] == null && !c.isNull(payloadColumn)) {
+                    try {
+                        row[dataColumn] = RmqPayloadCodec.decodeToString(c.getBlob(payloadColumn));
+                    } catch (IOException ex) {
+                        Log.e(LOG_TAG, "malformed rmq payload", ex);
+                    }
+                }
+                result.addRow(row);
+            }
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    private Cursor queryMessageUsage(Uri url) {
+        long accountId;
+        try {
+            accountId = Long.parseLong(url.getLastPathSegment());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Unknown URL " + url);
+        }
+        String groups = "(SELECT _id FROM " + TABLE_CONTACTS + " WHERE account=" + accountId + ")";
+        String sql = "SELECT " + accountId + " AS " + USAGE_ACCOUNT
+                + ", (SELECT COUNT(*) FROM " + TABLE_MESSAGES + " WHERE account=" + accountId
+                + ") AS " + USAGE_MESSAGES
+                + ", (SELECT COUNT(*) FROM " + TABLE_GROUP_MESSAGES + " WHERE groupId IN " + groups
+                + ") AS " + USAGE_GROUP_MESSAGES
+                + ", (SELECT IFNULL(SUM(LENGTH(body)), 0) FROM " + TABLE_MESSAGES
+                + " WHERE account=" + accountId
+                + ") + (SELECT IFNULL(SUM(LENGTH(body)), 0) FROM " + TABLE_GROUP_MESSAGES
+                + " WHERE groupId IN " + groups + ") AS " + USAGE_BODY_SIZE;
+
+        Cursor c = mOpenHelper.getReadableDatabase().rawQuery(sql, null);
+        if (c != null) {
+            c.setNotificationUri(getContext().getContentResolver(), Im.Messages.CONTENT_URI);
+        }
+        return c;
+    }
+
+    private Cursor querySearch(Uri url) {
+        long account = 0;
+        int limit = DEFAULT_SEARCH_LIMIT;
+        try {
+            String param = url.getQueryParameter(SEARCH_ACCOUNT);
+            if (param != null) {
+                account = Long.parseLong(param);
+            }
+            param = url.getQueryParameter(SEARCH_LIMIT);
+            if (param != null) {
+                limit = Integer.parseInt(param);
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid search URL " + url);
+        }
+
+        Cursor c = mSearchIndex.query(mOpenHelper.getReadableDatabase(),
+                url.getQueryParameter(SEARCH_QUERY), account, limit);
+        if (c != null) {
+            c.setNotificationUri(getContext().getContentResolver(), Im.Messages.CONTENT_URI);
+        }
+        return c;
+    }
+
+    /**
+     * Lists the changes to the roster tables after the sequence number in the URL, so an
+     * observer can apply them instead of querying the roster again.
+     */
+    private Cursor queryChanges(Uri url) {
+        long since;
+        try {
+            since = Long.parseLong(url.getLastPathSegment());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Unknown URL " + url);
+        }
+
+        Cursor c = mChangeFeed.query(since, url.getQueryParameter(ChangeFeed.TABLE_PARAMETER));
+        c.setNotificationUri(getContext().getContentResolver(), Im.Contacts.CONTENT_URI);
+        return c;
+    }
+
+    private Cursor queryFilterContacts(Uri url) {
+        long account;
+        try {
+            account = Long.parseLong(url.getPathSegments().get(3));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Unknown URL " + url);
+        }
+        String prefix = decodeURLSegment(url.getPathSegments().get(4));
+
+        Cursor c = mContactFilterIndex.filter(mOpenHelper.getReadableDatabase(), account, prefix);
+        c.setNotificationUri(getContext().getContentResolver(), Im.Contacts.CONTENT_URI);
+        return c;
+    }
+
+    /**
+     * Lists the contacts of an account online first, from {@link PresenceOrderIndex} rather
+     * than sorting the roster by presence on every query. A contact only moves when its own
+     * presence or name changes, so the other contacts keep their positions between queries.
+     */
+    private Cursor queryOrderedContacts(Uri url) {
+        long account;
+        try {
+            account = Long.parseLong(url.getLastPathSegment());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Unknown URL " + url);
+        }
+
+        Cursor c = mPresenceOrderIndex.query(mOpenHelper.getReadableDatabase(), account);
+        c.setNotificationUri(getContext().getContentResolver(), Im.Contacts.CONTENT_URI);
+        return c;
+    }
+
+    /**
+     * Reads the settings of a provider, or one of them, from memory.
+     *
+     * @return the settings, or null if the projection asks for more than the names and
+     *         the values of the settings.
+     */
+    private Cursor queryCachedProviderSettings(Uri url, String[] projection) {
+        List<String> segments = url.getPathSegments();
+        long provider;
+        try {
+            provider = Long.parseLong(segments.get(1));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Unknown URL " + url);
+        }
+        String name = segments.size() > 2 ? segments.get(2) : null;
+
+        Cursor c = mProviderSettingsCache.query(mOpenHelper.getReadableDatabase(), provider,
+                name, projection);
+        if (c != null) {
+            c.setNotificationUri(getContext().getContentResolver(), url);
+        }
+        return c;
+    }
+
+    /**
+     * Writes a whole map of settings of a provider, keyed by the setting names. A null
+     * value removes the setting.
+     *
+     * @return the number of settings written.
+     */
+    private int putProviderSettings(SQLiteDatabase db, Uri url, ContentValues settings) {
+        String provider = url.getPathSegments().get(1);
+        String[] whereArgs = new String[1];
+        ContentValues values = new ContentValues(3);
+        int count = 0;
+        for (Map.Entry<String, Object> setting : settings.valueSet()) {
+            Object value = setting.getValue();
+            if (value == null) {
+                whereArgs[0] = setting.getKey();
+                count += db.delete(TABLE_PROVIDER_SETTINGS, Im.ProviderSettings.PROVIDER + "="
+                        + provider + " AND " + Im.ProviderSettings.NAME + "=?", whereArgs);
+            } else {
+                values.put(Im.ProviderSettings.PROVIDER, provider);
+                values.put(Im.ProviderSettings.NAME, setting.getKey());
+                values.put(Im.ProviderSettings.VALUE, value.toString());
+                if (db.replace(TABLE_PROVIDER_SETTINGS, null, values) > 0) {
+                    count++;
+                }
+            }
+        }
+        invalidateProviderSettings(db, Long.parseLong(provider));
+        return count;
+    }
+
+    /**
+     * Replaces all the session cookies of the account of a sessionCookiesBy/#/#/replace
+     * uri with a new set, each row holding the name and the value of a cookie.
+     */
+    private int replaceSessionCookies(SQLiteDatabase db, Uri url, ContentValues[] cookies) {
+        List<String> segments = url.getPathSegments();
+        long provider;
+        long account;
+        try {
+            provider = Long.parseLong(segments.get(1));
+            account = Long.parseLong(segments.get(2));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Unknown URL " + url);
+        }
+        int count = SessionCookieStore.replace(db, provider, account, cookies);
+        invalidateSessionCookies(db, account);
+        return count;
+    }
+
+    /**
+     * Reads the status of the accounts from memory. The cursor of a single account is only
+     * notified when that account's status changes.
+     */
+    private Cursor queryCachedAccountStatus(Uri url, boolean singleAccount) {
+        long account = 0;
+        Uri notificationUri = Im.AccountStatus.CONTENT_URI;
+        if (singleAccount) {
+            try {
+                account = Long.parseLong(url.getLastPathSegment());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Unknown URL " + url);
+            }
+            notificationUri = ContentUris.withAppendedId(Im.AccountStatus.CONTENT_URI, account);
+        }
+
+        Cursor c = mAccountStatusCache.query(mOpenHelper.getReadableDatabase(), account);
+        c.setNotificationUri(getContext().getContentResolver(), notificationUri);
+        return c;
+    }
+
+    /**
+     * Reads the status of the accounts written by the current transaction, and puts it in
+     * mAccountStatusCache once the transaction commits.
+     *
+     * @return the ids of the accounts.
+     */
+    private long[] refreshAccountStatus(SQLiteDatabase db, String selection) {
+        final AccountStatusCache.Statuses statuses = mAccountStatusCache.read(db, selection);
+        afterCommit(db, new Runnable() {
+            public void run() {
+                mAccountStatusCache.update(statuses);
+            }
+        });
+        return statuses.getAccounts();
+    }
+
+    /**
+     * Drops the cached settings of a provider once the current transaction commits.
+     *
+     * @param provider the provider whose settings were written, or null if it isn't known.
+     */
+    private void invalidateProviderSettings(SQLiteDatabase db, final Long provider) {
+        afterCommit(db, new Runnable() {
+            public void run() {
+                if (provider != null) {
+                    mProviderSettingsCache.invalidate(provider);
+                } else {
+                    mProviderSettingsCache.invalidateAll();
+                }
+            }
+        });
+    }
+
+    private void invalidateSessionCookies(SQLiteDatabase db, final Long account) {
+        afterCommit(db, new Runnable() {
+            public void run() {
+                if (account != null) {
+                    mSessionCookieStore.invalidate(account);
+                } else {
+                    mSessionCookieStore.invalidateAll();
+                }
+            }
+        });
+    }
+
+    private void invalidateAccountStatus(SQLiteDatabase db) {
+        afterCommit(db, new Runnable() {
+            public void run() {
+                mAccountStatusCache.invalidate();
+            }
+        });
+    }
+
+    /**
+     * Notifies the observers of each account's status, so they don't have to requery the
+     * providers and accounts.
+     */
+    private void notifyAccountStatusChange(long[] accounts) {
+        ContentResolver resolver = getContext().getContentResolver();
+        for (long account : accounts) {
+            Uri uri = ContentUris.withAppendedId(Im.AccountStatus.CONTENT_URI, account);
+            if (DBG) log("notify change for " + uri);
+            resolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Reserves a range of rmq ids. lastrmqid is only written once per block of ids, so
+     * most reservations don't touch the database.
+     */
+    private Cursor reserveRmqIds(Uri url) {
+        int count;
+        try {
+            count = Integer.parseInt(url.getLastPathSegment());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Unknown URL " + url);
+        }
+        if (count <= 0) {
+            throw new IllegalArgumentException("Invalid number of rmq ids: " + count);
+        }
+
+        long first;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            first = mOutgoingRmqQueue.reserve(db, count);
+            db.setTransactionSuccessful();
+            successful = true;
+        } catch (RuntimeException ex) {
+            mOutgoingRmqQueue.reset();
+            throw ex;
+        } finally {
+            endWriteTransaction(db, successful);
+        }
+
+        MatrixCursor c = new MatrixCursor(RESERVED_RMQ_IDS_COLUMNS, 1);
+        c.addRow(new Object[] { first, count });
+        return c;
+    }
+
     private void buildQueryContactsByProvider(SQLiteQueryBuilder qb,
             StringBuilder whereClause, Uri url) {
         qb.setTables(CONTACT_JOIN_PRESENCE_CHAT_AVATAR_TABLE);
@@ -1167,6 +2112,21 @@ public class ImProvider extends ContentProvider {
         appendWhere(whereClause, Im.Contacts.ACCOUNT, "=", url.getLastPathSegment());
     }
 
+    private static String getRecentContactsLimit(Uri url) {
+        String limit = url.getQueryParameter(RECENT_CONTACTS_LIMIT);
+        if (limit == null) {
+            return Integer.toString(DEFAULT_RECENT_CONTACTS_LIMIT);
+        }
+        try {
+            if (Integer.parseInt(limit) > 0) {
+                return limit;
+            }
+        } catch (NumberFormatException ex) {
+            // fall through
+        }
+        throw new IllegalArgumentException("Invalid " + RECENT_CONTACTS_LIMIT + ": " + limit);
+    }
+
     @Override
     public String getType(Uri url) {
         int match = mUrlMatcher.match(url);
@@ -1185,8 +2145,10 @@ public class ImProvider extends ContentProvider {
 
             case MATCH_CONTACTS:
             case MATCH_CONTACTS_BY_PROVIDER:
+            case MATCH_RECENT_CONTACTS_BY_PROVIDER:
             case MATCH_ONLINE_CONTACTS_BY_PROVIDER:
             case MATCH_OFFLINE_CONTACTS_BY_PROVIDER:
+            case MATCH_ORDERED_CONTACTS_BY_PROVIDER:
             case MATCH_CONTACTS_BULK:
             case MATCH_CONTACTS_BAREBONE:
             case MATCH_CONTACTS_JOIN_PRESENCE:
@@ -1252,9 +2214,11 @@ public class ImProvider extends ContentProvider {
 
             case MATCH_SESSIONS:
             case MATCH_SESSIONS_BY_PROVIDER:
+            case MATCH_SESSIONS_REPLACE:
                 return Im.SessionCookies.CONTENT_TYPE;
 
             case MATCH_PROVIDER_SETTINGS:
+            case MATCH_BULK_PROVIDER_SETTINGS:
                 return Im.ProviderSettings.CONTENT_TYPE;
 
             case MATCH_ACCOUNTS_STATUS:
@@ -1294,6 +2258,7 @@ public class ImProvider extends ContentProvider {
             
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
+        boolean successful = false;
         db.beginTransaction();
         try {
             Long provider = values.getAsLong(Im.Contacts.PROVIDER);
@@ -1307,6 +2272,7 @@ public class ImProvider extends ContentProvider {
             ContentValues presenceValues = new ContentValues();
             presenceValues.put(Im.Presence.PRESENCE_STATUS,
                     Im.Presence.OFFLINE);
+            presenceValues.put(PRESENCE_ACCOUNT, account);
 
             for (int i=0; i<usernameCount; i++) {
                 String username = usernames.get(i);
@@ -1367,7 +2333,7 @@ public class ImProvider extends ContentProvider {
                 } catch (android.database.sqlite.SQLiteConstraintException ex) {
                     if (DBG) log("insertBulkContacts: insert " + username + " caught " + ex);
                     
-                    // append username to the selection clause
+                    // append contact id to the selection clause
                     updateSelection.delete(0, updateSelection.length());
                     updateSelection.append(Im.Contacts.USERNAME);
                     updateSelection.append("=?");
@@ -1385,6 +2351,10 @@ public class ImProvider extends ContentProvider {
                 rowId = db.insert(TABLE_CONTACTS, USERNAME, contactValues);
                 if (rowId > 0) {
                     sum++;
+                    if (account != null) {
+                        indexContactAdded(db, account, rowId, username, nickname, type,
+                                USE_CONTACT_PRESENCE_TRIGGER ? null : Im.Presence.OFFLINE);
+                    }
                     if (!USE_CONTACT_PRESENCE_TRIGGER) {
                         // seed the presence for the new contact
                         //if (DBG) log("seedPresence for pid " + rowId);
@@ -1399,8 +2369,9 @@ public class ImProvider extends ContentProvider {
             }
 
             db.setTransactionSuccessful();
+            successful = true;
         } finally {
-            db.endTransaction();
+            endWriteTransaction(db, successful);
         }
 
         // We know that we succeeded becuase endTransaction throws if the transaction failed.
@@ -1431,6 +2402,7 @@ public class ImProvider extends ContentProvider {
         ArrayList<String> rejectedArray = values.getStringArrayList(Im.Contacts.REJECTED);
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
+        boolean successful = false;
         db.beginTransaction();
         int sum = 0;
 
@@ -1477,7 +2449,7 @@ public class ImProvider extends ContentProvider {
                 contactValues.put(Im.Contacts.QUICK_CONTACT, quickContact);
                 contactValues.put(Im.Contacts.REJECTED, rejected);
 
-                // append username to the selection clause
+                // append contact id to the selection clause
                 updateSelection.delete(0, updateSelection.length());
                 updateSelection.append(userWhere);
                 updateSelection.append(" AND ");
@@ -1501,112 +2473,80 @@ public class ImProvider extends ContentProvider {
             }
 
             db.setTransactionSuccessful();
+            successful = true;
         } finally {
-            db.endTransaction();
+            endWriteTransaction(db, successful);
         }
 
-        if (DBG) log("updateBulkContacts: " + sum + " entries updated");
-        return sum;
-    }
-
-    // constants definitions use for the query in seedInitialPresenceByAccount()
-    private static final String[] CONTACT_ID_PROJECTION = new String[] {
-            Im.Contacts._ID,    // 0
-    };
-
-    private static final int COLUMN_ID = 0;
+        if (sum > 0) {
+            Long account = values.getAsLong(Im.Contacts.ACCOUNT);
+            invalidateContactIndexes(db, account);
+            resetChanges(db, TABLE_CONTACTS);
+        }
 
-    private static final String CONTACTS_WITH_NO_PRESENCE_SELECTION =
-            Im.Contacts.ACCOUNT + "=?" + " AND " + Im.Contacts._ID +
-                    " in (select " + CONTACT_ID + " from " + TABLE_CONTACTS +
-                    " left outer join " + TABLE_PRESENCE + " on " + CONTACT_ID + '=' +
-                    PRESENCE_CONTACT_ID + " where " + PRESENCE_CONTACT_ID + " IS NULL)";
+        if (DBG) log("updateBulkContacts: " + sum + " entries updated");
+        return sum;
+    }
 
-    // selection args for the query.
-    private String[] mQueryContactPresenceSelectionArgs = new String[1];
+    // puts the presence of the contacts of an account back to offline
+    private static final String RESET_PRESENCE_BY_ACCOUNT =
+            "UPDATE " + TABLE_PRESENCE + " SET "
+            + Im.Presence.PRESENCE_STATUS + "=" + Im.Presence.OFFLINE + ","
+            + Im.Presence.PRESENCE_CUSTOM_STATUS + "=''"
+            + " WHERE " + PRESENCE_ACCOUNT + "=?";
+
+    // adds an offline presence for the contacts of an account, the contacts that already
+    // have one are skipped by the unique contact_id
+    private static final String SEED_PRESENCE_BY_ACCOUNT =
+            "INSERT OR IGNORE INTO " + TABLE_PRESENCE + " ("
+            + Im.Presence.CONTACT_ID + "," + PRESENCE_ACCOUNT + ","
+            + Im.Presence.PRESENCE_STATUS + "," + Im.Presence.PRESENCE_CUSTOM_STATUS + ")"
+            + " SELECT " + Im.Contacts._ID + "," + Im.Contacts.ACCOUNT + ","
+            + Im.Presence.OFFLINE + ",''"
+            + " FROM " + TABLE_CONTACTS + " WHERE " + Im.Contacts.ACCOUNT + "=?";
 
     /**
-     * This method first performs a query for all the contacts (for the given account) that
-     * don't have a presence entry in the presence table. Then for each of those contacts,
-     * the method creates a presence row. The whole thing is done inside one database transaction
-     * to increase performance.
+     * This method resets the presence of all the contacts of the given account to offline,
+     * then creates an offline presence row for each of its contacts that doesn't have one yet.
+     * Each step is a single statement, and both are done inside one database transaction.
      *
      * @param account the account of the contacts for which we want to create seed presence rows.
+     * @return the number of presence rows reset, and the number of presence rows added.
      */
-    private void seedInitialPresenceByAccount(long account) {
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setTables(TABLE_CONTACTS);
-        qb.setProjectionMap(sContactsProjectionMap);
-
-        mQueryContactPresenceSelectionArgs[0] = String.valueOf(account);
-
+    private int[] seedInitialPresenceByAccount(long account) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean successful = false;
         db.beginTransaction();
 
-        Cursor c = null;
-
         try {
-            ContentValues presenceValues = new ContentValues();
-            presenceValues.put(Im.Presence.PRESENCE_STATUS, Im.Presence.OFFLINE);
-            presenceValues.put(Im.Presence.PRESENCE_CUSTOM_STATUS, "");
-
-            // First: update all the presence for the account so they are offline
-            StringBuilder buf = new StringBuilder();
-            buf.append(Im.Presence.CONTACT_ID);
-            buf.append(" in (select ");
-            buf.append(Im.Contacts._ID);
-            buf.append(" from ");
-            buf.append(TABLE_CONTACTS);
-            buf.append(" where ");
-            buf.append(Im.Contacts.ACCOUNT);
-            buf.append("=?) ");
-
-            String selection = buf.toString();
-            if (DBG) log("seedInitialPresence: reset presence selection=" + selection);
-
-            int count = db.update(TABLE_PRESENCE, presenceValues, selection,
-                    mQueryContactPresenceSelectionArgs);
-            if (DBG) log("seedInitialPresence: reset " + count + " presence rows to OFFLINE");
-
-            // second: add a presence row for each contact that doesn't have a presence
-            if (DBG) {
-                log("seedInitialPresence: contacts_with_no_presence_selection => " +
-                        CONTACTS_WITH_NO_PRESENCE_SELECTION);
-            }
-
-            c = qb.query(db,
-                    CONTACT_ID_PROJECTION,
-                    CONTACTS_WITH_NO_PRESENCE_SELECTION,
-                    mQueryContactPresenceSelectionArgs,
-                    null, null, null, null);
-
-            if (DBG) log("seedInitialPresence: found " + c.getCount() + " contacts w/o presence");
-
-            count = 0;
+            int reset = executeForChanges(db, RESET_PRESENCE_BY_ACCOUNT, account);
+            if (DBG) log("seedInitialPresence: reset " + reset + " presence rows to OFFLINE");
 
-            while (c.moveToNext()) {
-                long id = c.getLong(COLUMN_ID);
-                presenceValues.put(Im.Presence.CONTACT_ID, id);
-
-                try {
-                    if (db.insert(TABLE_PRESENCE, null, presenceValues) > 0) {
-                        count++;
-                    }
-                } catch (SQLiteConstraintException ex) {
-                    // we could possibly catch this exception, since there could be a presence
-                    // row with the same contact_id. That's fine, just ignore the error
-                    if (DBG) log("seedInitialPresence: insert presence for contact_id " + id +
-                            " failed, caught " + ex);
-                }
-            }
+            int seeded = executeForChanges(db, SEED_PRESENCE_BY_ACCOUNT, account);
+            if (DBG) log("seedInitialPresence: added " + seeded + " new presence rows");
 
             db.setTransactionSuccessful();
+            successful = true;
+            return new int[] { reset, seeded };
+        } finally {
+            endWriteTransaction(db, successful);
+        }
+    }
 
-            if (DBG) log("seedInitialPresence: added " + count + " new presence rows");
+    /**
+     * Runs an UPDATE, INSERT or DELETE statement taking one id argument.
+     *
+     * @return the number of rows the statement changed.
+     */
+    private static int executeForChanges(SQLiteDatabase db, String sql, long arg) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            statement.bindLong(1, arg);
+            statement.execute();
         } finally {
-            c.close();
-            db.endTransaction();
+            statement.close();
         }
+        return (int) DatabaseUtils.longForQuery(db, "SELECT changes()", null);
     }
 
     private int updateBulkPresence(ContentValues values, String userWhere, String[] whereArgs) {
@@ -1621,7 +2561,7 @@ public class ImProvider extends ContentProvider {
         ArrayList<String> clientTypeArray = values.getStringArrayList(Im.Presence.CLIENT_TYPE);
         ArrayList<String> resourceArray = values.getStringArrayList(Im.Presence.JID_RESOURCE);
 
-        // append username to the selection clause
+        // append contact id to the selection clause
         StringBuilder buf = new StringBuilder();
 
         if (!TextUtils.isEmpty(userWhere)) {
@@ -1630,17 +2570,7 @@ public class ImProvider extends ContentProvider {
         }
 
         buf.append(Im.Presence.CONTACT_ID);
-        buf.append(" in (select ");
-        buf.append(Im.Contacts._ID);
-        buf.append(" from ");
-        buf.append(TABLE_CONTACTS);
-        buf.append(" where ");
-        buf.append(Im.Contacts.ACCOUNT);
-        buf.append("=? AND ");
-
-        // use username LIKE ? for case insensitive comparison
-        buf.append(Im.Contacts.USERNAME);
-        buf.append(" LIKE ?) AND (");
+        buf.append("=? AND (");
 
         buf.append(Im.Presence.PRIORITY);
         buf.append("<=? OR ");
@@ -1653,21 +2583,29 @@ public class ImProvider extends ContentProvider {
 
         if (DBG) log("updateBulkPresence: selection => " + selection);
 
-        int numArgs = (whereArgs != null ? whereArgs.length + 4 : 4);
+        int numArgs = (whereArgs != null ? whereArgs.length + 3 : 3);
         String[] selectionArgs = new String[numArgs];
         int selArgsIndex = 0;
 
         if (whereArgs != null) {
-            for (selArgsIndex=0; selArgsIndex<numArgs-1; selArgsIndex++) {
+            for (selArgsIndex=0; selArgsIndex<whereArgs.length; selArgsIndex++) {
                 selectionArgs[selArgsIndex] = whereArgs[selArgsIndex];
             }
         }
 
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
+        boolean successful = false;
         db.beginTransaction();
         int sum = 0;
 
+        // the presence updates name the contacts by username, look up their ids first so
+        // the changes can be followed contact by contact.
+        // use username LIKE ? for case insensitive comparison
+        SQLiteStatement contactIdQuery = db.compileStatement("SELECT " + Im.Contacts._ID
+                + " FROM " + TABLE_CONTACTS + " WHERE " + Im.Contacts.ACCOUNT + "=? AND "
+                + Im.Contacts.USERNAME + " LIKE ?");
+
         try {
             ContentValues presenceValues = new ContentValues();
 
@@ -1716,10 +2654,19 @@ public class ImProvider extends ContentProvider {
                     presenceValues.put(Im.Presence.JID_RESOURCE, jidResource);
                 }
 
+                long contactId;
+                try {
+                    contactIdQuery.bindString(1, String.valueOf(account));
+                    contactIdQuery.bindString(2, username);
+                    contactId = contactIdQuery.simpleQueryForLong();
+                } catch (SQLiteDoneException ex) {
+                    Log.e(LOG_TAG, "[ImProvider] updateBulkPresence: no contact " + username);
+                    continue;
+                }
+
                 // fill in the selection args
                 int idx = selArgsIndex;
-                selectionArgs[idx++] = String.valueOf(account);
-                selectionArgs[idx++] = username;
+                selectionArgs[idx++] = String.valueOf(contactId);
                 selectionArgs[idx++] = String.valueOf(priority);
                 selectionArgs[idx] = jidResource;
 
@@ -1729,6 +2676,11 @@ public class ImProvider extends ContentProvider {
                     Log.e(LOG_TAG, "[ImProvider] updateBulkPresence: failed for " + username);
                 } else {
                     sum += numUpdated;
+                    if (modeArray != null) {
+                        indexPresenceChanged(db, contactId, mode);
+                    }
+                    recordRowChange(db, TABLE_PRESENCE, ChangeFeed.UPDATE, contactId,
+                            presenceValues);
                 }
 
                 // yield the lock if anyone else is trying to
@@ -1737,8 +2689,10 @@ public class ImProvider extends ContentProvider {
             }
 
             db.setTransactionSuccessful();
+            successful = true;
         } finally {
-            db.endTransaction();
+            contactIdQuery.close();
+            endWriteTransaction(db, successful);
         }
 
         if (DBG) log("updateBulkPresence: " + sum + " entries updated");
@@ -1753,6 +2707,8 @@ public class ImProvider extends ContentProvider {
         boolean notifyMessagesContentUri = false;
         boolean notifyGroupMessagesContentUri = false;
         boolean notifyProviderAccountContentUri = false;
+        boolean notifyProviderSettingsContentUri = false;
+        long[] changedAccountStatus = null;
 
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int match = mUrlMatcher.match(url);
@@ -1787,6 +2743,15 @@ public class ImProvider extends ContentProvider {
                 rowID = db.insert(TABLE_CONTACTS, "username", initialValues);
                 if (rowID > 0) {
                     resultUri = Uri.parse(Im.Contacts.CONTENT_URI + "/" + rowID);
+                    recordRowChange(db, TABLE_CONTACTS, ChangeFeed.INSERT, rowID, initialValues);
+                    Long account = initialValues.getAsLong(Im.Contacts.ACCOUNT);
+                    Integer type = initialValues.getAsInteger(Im.Contacts.TYPE);
+                    if (account != null) {
+                        indexContactAdded(db, account, rowID,
+                                initialValues.getAsString(Im.Contacts.USERNAME),
+                                initialValues.getAsString(Im.Contacts.NICKNAME),
+                                type == null ? 0 : type, null);
+                    }
                 }
 
                 notifyContactContentUri = true;
@@ -1798,6 +2763,8 @@ public class ImProvider extends ContentProvider {
                     // so the change will be observed by listeners interested
                     // in contacts changes.
                     resultUri = Im.Contacts.CONTENT_URI;
+                    resetChanges(db, TABLE_CONTACTS);
+                    resetChanges(db, TABLE_PRESENCE);
                 }
                 notifyContactContentUri = true;
                 break;
@@ -1845,6 +2812,11 @@ public class ImProvider extends ContentProvider {
                 rowID = db.insert(TABLE_MESSAGES, "contact", initialValues);
                 if (rowID > 0) {
                     resultUri = Uri.parse(Im.Messages.CONTENT_URI + "/" + rowID);
+                    Long account = initialValues.getAsLong(Im.Messages.ACCOUNT);
+                    if (account != null && mMessageTrimmer.onMessageInserted(db, account,
+                            initialValues.getAsString(Im.Messages.CONTACT)) > 0) {
+                        notifyMessagesContentUri = true;
+                    }
                 }
 
                 break;
@@ -1879,6 +2851,11 @@ public class ImProvider extends ContentProvider {
                 rowID = db.insert(TABLE_GROUP_MESSAGES, "group", initialValues);
                 if (rowID > 0) {
                     resultUri = Uri.parse(Im.GroupMessages.CONTENT_URI + "/" + rowID);
+                    Long groupId = initialValues.getAsLong(Im.GroupMessages.GROUP);
+                    if (groupId != null
+                            && mMessageTrimmer.onGroupMessageInserted(db, groupId) > 0) {
+                        notifyGroupMessagesContentUri = true;
+                    }
                 }
                 break;
 
@@ -1898,26 +2875,41 @@ public class ImProvider extends ContentProvider {
                 // fall through
             case MATCH_CHATS:
                 // Insert into the chats table
-                initialValues.put(Im.Chats.SHORTCUT, -1);
-                rowID = db.replace(TABLE_CHATS, Im.Chats.CONTACT_ID, initialValues);
+                rowID = insertChat(db, initialValues);
                 if (rowID > 0) {
                     resultUri = Uri.parse(Im.Chats.CONTENT_URI + "/" + rowID);
-                    addToQuickSwitch(rowID);
+                    recordRowChange(db, TABLE_CHATS, ChangeFeed.INSERT,
+                            initialValues.getAsLong(Im.Chats.CONTACT_ID), initialValues);
                 }
                 notifyContactContentUri = true;
                 break;
 
             case MATCH_PRESENCE:
+                putContactAccount(db, initialValues, Im.Presence.CONTACT_ID, PRESENCE_ACCOUNT);
                 rowID = db.replace(TABLE_PRESENCE, null, initialValues);
                 if (rowID > 0) {
                     resultUri = Uri.parse(Im.Presence.CONTENT_URI + "/" + rowID);
+                    Long contactId = initialValues.getAsLong(Im.Presence.CONTACT_ID);
+                    if (contactId != null) {
+                        indexPresenceChanged(db, contactId,
+                                initialValues.getAsInteger(Im.Presence.PRESENCE_STATUS));
+                        recordRowChange(db, TABLE_PRESENCE, ChangeFeed.INSERT, contactId,
+                                initialValues);
+                    } else {
+                        resetChanges(db, TABLE_PRESENCE);
+                    }
                 }
                 notifyContactContentUri = true;
                 break;
 
             case MATCH_PRESENCE_SEED_BY_ACCOUNT:
                 try {
-                    seedInitialPresenceByAccount(Long.parseLong(url.getLastPathSegment()));
+                    long account = Long.parseLong(url.getLastPathSegment());
+                    int[] counts = seedInitialPresenceByAccount(account);
+                    // every contact of the account went offline
+                    invalidatePresenceOrder(db, account);
+                    resetChanges(db, TABLE_PRESENCE);
+                    if (DBG) log("seed presence: " + counts[0] + " reset, " + counts[1] + " added");
                     resultUri = Im.Presence.CONTENT_URI;
                 } catch (NumberFormatException ex) {
                     throw new IllegalArgumentException();
@@ -1932,6 +2924,13 @@ public class ImProvider extends ContentProvider {
                 rowID = db.insert(TABLE_SESSION_COOKIES, null, initialValues);
                 if(rowID > 0) {
                     resultUri = Uri.parse(Im.SessionCookies.CONTENT_URI + "/" + rowID);
+                    final long cookieId = rowID;
+                    final ContentValues cookie = new ContentValues(initialValues);
+                    afterCommit(db, new Runnable() {
+                        public void run() {
+                            mSessionCookieStore.onInserted(cookieId, cookie);
+                        }
+                    });
                 }
                 break;
 
@@ -1940,8 +2939,22 @@ public class ImProvider extends ContentProvider {
                 if (rowID > 0) {
                     resultUri = Uri.parse(Im.ProviderSettings.CONTENT_URI + "/" + rowID);
                 }
+                invalidateProviderSettings(db,
+                        initialValues.getAsLong(Im.ProviderSettings.PROVIDER));
                 break;
 
+            case MATCH_BULK_PROVIDER_SETTINGS:
+                // one transaction for the whole map
+                if (putProviderSettings(db, url, initialValues) > 0) {
+                    resultUri = url;
+                }
+                // the observers of the settings don't know about the bulk uri
+                notifyProviderSettingsContentUri = true;
+                break;
+
+            case MATCH_OUTGOING_RMQ_COMPACT:
+                OutgoingRmqQueue.encodePayload(initialValues);
+                // fall through
             case MATCH_OUTGOING_RMQ_MESSAGES:
                 rowID = db.insert(TABLE_OUTGOING_RMQ_MESSAGES, null, initialValues);
                 if (rowID > 0) {
@@ -1954,14 +2967,15 @@ public class ImProvider extends ContentProvider {
                 if (rowID > 0) {
                     resultUri = Uri.parse(Im.LastRmqId.CONTENT_URI + "/" + rowID);
                 }
+                mOutgoingRmqQueue.reset();
                 break;
 
             case MATCH_ACCOUNTS_STATUS:
                 rowID = db.replace(TABLE_ACCOUNT_STATUS, null, initialValues);
                 if (rowID > 0) {
                     resultUri = Uri.parse(Im.AccountStatus.CONTENT_URI + "/" + rowID);
+                    changedAccountStatus = refreshAccountStatus(db, "_id=" + rowID);
                 }
-                notifyProviderAccountContentUri = true;
                 break;
 
             case MATCH_BRANDING_RESOURCE_MAP_CACHE:
@@ -2002,6 +3016,14 @@ public class ImProvider extends ContentProvider {
                 resolver.notifyChange(Im.Provider.CONTENT_URI_WITH_ACCOUNT,
                         null);
             }
+
+            if (notifyProviderSettingsContentUri) {
+                resolver.notifyChange(Im.ProviderSettings.CONTENT_URI, null);
+            }
+
+            if (changedAccountStatus != null) {
+                notifyAccountStatusChange(changedAccountStatus);
+            }
         }
         return resultUri;
     }
@@ -2019,143 +3041,351 @@ public class ImProvider extends ContentProvider {
     }
 
     //  Quick-switch management
-    //  The chat UI provides slots (0, 9, .., 1) for the first 10 chats.  This allows you to
-    //  quickly switch between these chats by chording menu+#.  We number from the right end of
-    //  the number row and move leftward to make an easier two-hand chord with the menu button
-    //  on the left side of the keyboard.
-    private void addToQuickSwitch(long newRow) {
-        //  Since there are fewer than 10, there must be an empty slot.  Let's find it.
-        int slot = findEmptyQuickSwitchSlot();
-
-        if (slot == -1) {
-            return;
+    //  The chat UI provides slots (0, 9, .., 1) for the first 10 chats. Which chat holds
+    //  which slot is tracked by mQuickSwitchSlots, so assigning and backfilling a slot
+    //  doesn't need to scan the chats table.
+    private long insertChat(SQLiteDatabase db, ContentValues values) {
+        Long contactId = values.getAsLong(Im.Chats.CONTACT_ID);
+        if (contactId == null) {
+            throw new IllegalArgumentException("chat without " + Im.Chats.CONTACT_ID);
         }
+        Long lastMessageDate = values.getAsLong(Im.Chats.LAST_MESSAGE_DATE);
 
-        updateSlotForChat(newRow, slot);
-    }
+        // the insert replaces any existing chat with the contact, and takes over its slot
+        mQuickSwitchSlots.loadIfInvalid(db);
+        int slot = mQuickSwitchSlots.nextSlotForContact(contactId);
+        values.put(Im.Chats.SHORTCUT, slot);
+        putContactAccount(db, values, Im.Chats.CONTACT_ID, CHAT_ACCOUNT);
 
-    //  If there are more than 10 chats and one with a quick switch slot ends then pick a chat
-    //  that doesn't have a slot and have it inhabit the newly emptied slot.
-    private void backfillQuickSwitchSlots() {
-        //  Find all the chats without a quick switch slot, and order
-        Cursor c = query(Im.Chats.CONTENT_URI,
-            BACKFILL_PROJECTION,
-            Im.Chats.SHORTCUT + "=-1", null, Im.Chats.LAST_MESSAGE_DATE + " DESC");
+        long rowID = db.replace(TABLE_CHATS, Im.Chats.CONTACT_ID, values);
+        if (rowID > 0) {
+            mQuickSwitchSlots.addChat(rowID, contactId, slot,
+                    lastMessageDate == null ? 0 : lastMessageDate);
+        }
+        return rowID;
+    }
 
+    /**
+     * Copies the account of the contact a row belongs to into the row, unless the caller
+     * already gave it.
+     */
+    private static void putContactAccount(SQLiteDatabase db, ContentValues values,
+            String contactIdColumn, String accountColumn) {
+        Long contactId = values.getAsLong(contactIdColumn);
+        if (contactId == null || values.containsKey(accountColumn)) {
+            return;
+        }
+        Cursor c = db.query(TABLE_CONTACTS, new String[] { Im.Contacts.ACCOUNT },
+                Im.Contacts._ID + "=" + contactId, null, null, null, null);
         try {
-            if (c.getCount() < 1) {
-                return;
-            }
-        
-            int slot = findEmptyQuickSwitchSlot();
-        
-            if (slot != -1) {
-                c.moveToFirst();
-            
-                long id = c.getLong(c.getColumnIndex(Im.Chats._ID));
-            
-                updateSlotForChat(id, slot);
+            if (c.moveToFirst() && !c.isNull(0)) {
+                values.put(accountColumn, c.getLong(0));
             }
         } finally {
             c.close();
         }
     }
 
-    private int updateSlotForChat(long chatId, int slot) {
-        ContentValues values = new ContentValues();
-        
-        values.put(Im.Chats.SHORTCUT, slot);
-        
-        return update(Im.Chats.CONTENT_URI, values, Im.Chats._ID + "=?",
-            new String[] { Long.toString(chatId) });
+    /**
+     * Records a write to one of the roster tables in the change feed.
+     *
+     * @param rowId the row written, or null if the write may have touched more than one row.
+     */
+    private void recordChange(SQLiteDatabase db, String table, int change, String rowId,
+            ContentValues values) {
+        if (!ChangeFeed.isTracked(table)) {
+            return;
+        }
+        if (rowId == null) {
+            resetChanges(db, table);
+            return;
+        }
+        try {
+            recordRowChange(db, table, change, Long.parseLong(rowId), values);
+        } catch (NumberFormatException ex) {
+            resetChanges(db, table);
+        }
     }
 
-    private int findEmptyQuickSwitchSlot() {
-        Cursor c = queryInternal(Im.Chats.CONTENT_URI, FIND_SHORTCUT_PROJECTION, null, null, null);
-        final int N = c.getCount();
+    /**
+     * Records the write of one row in the change feed, once it's committed.
+     *
+     * @param values the values written, or null.
+     */
+    private void recordRowChange(SQLiteDatabase db, final String table, final int change,
+            final long rowId, ContentValues values) {
+        // the values may be reused before the transaction commits
+        final String columns = values == null ? null : ChangeFeed.joinColumns(values);
+        afterCommit(db, new Runnable() {
+            public void run() {
+                mChangeFeed.record(table, change, rowId, columns);
+            }
+        });
+    }
 
-        try {
-            //  If there are 10 or more chats then all the quick switch slots are already filled
-            if (N >= 10) {
-                return -1;
+    /**
+     * Records a reset of a table in the change feed, once the changes that can't be told
+     * row by row are committed.
+     */
+    private void resetChanges(SQLiteDatabase db, final String table) {
+        afterCommit(db, new Runnable() {
+            public void run() {
+                mChangeFeed.reset(table);
             }
+        });
+    }
 
-            int slots = 0;
-            int column = c.getColumnIndex(Im.Chats.SHORTCUT);
-            
-            //  The map is here because numbers go from 0-9, but we want to assign slots in
-            //  0, 9, 8, ..., 1 order to match the right-to-left reading of the number row
-            //  on the keyboard.
-            int[] map = new int[] { 0, 9, 8, 7, 6, 5, 4, 3, 2, 1 };
-
-            //  Mark all the slots that are in use
-            //  The shortcuts represent actual keyboard number row keys, and not ordinals.
-            //  So 7 would mean the shortcut is the 7 key on the keyboard and NOT the 7th
-            //  shortcut.  The passing of slot through map[] below maps these keyboard key
-            //  shortcuts into an ordinal bit position in the 'slots' bitfield.
-            for (c.moveToFirst(); ! c.isAfterLast(); c.moveToNext()) {
-                int slot = c.getInt(column);
-                
-                if (slot != -1) {
-                    slots |= (1 << map[slot]);
-                }
+    private int deleteChats(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        mQuickSwitchSlots.loadIfInvalid(db);
+        long[] chatIds = queryChatIds(db, selection, selectionArgs);
+        int count = db.delete(TABLE_CHATS, selection, selectionArgs);
+        if (count > 0) {
+            for (long chatId : chatIds) {
+                mQuickSwitchSlots.removeChat(chatId);
+            }
+            backfillQuickSwitchSlots(db);
+        }
+        return count;
+    }
+
+    private void deleteChatWithContactId(SQLiteDatabase db, long contactId) {
+        mQuickSwitchSlots.loadIfInvalid(db);
+        deleteWithContactId(db, contactId, TABLE_CHATS, Im.Chats.CONTACT_ID);
+        mQuickSwitchSlots.removeChatForContact(contactId);
+        backfillQuickSwitchSlots(db);
+    }
+
+    /**
+     * @param contactId the contact of the only chat to update, or 0 if the chats to update
+     *        are only known by the selection.
+     */
+    private int updateChats(SQLiteDatabase db, ContentValues values, String selection,
+            String[] selectionArgs, long contactId) {
+        Long lastMessageDate = values.getAsLong(Im.Chats.LAST_MESSAGE_DATE);
+        // the slot is owned by the provider
+        values.remove(Im.Chats.SHORTCUT);
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        // the last message date only matters for the chats waiting for a slot
+        mQuickSwitchSlots.loadIfInvalid(db);
+        long[] chatIds = null;
+        if (lastMessageDate != null && mQuickSwitchSlots.hasUnslottedChats()) {
+            if (contactId > 0) {
+                chatIds = new long[] { mQuickSwitchSlots.getChatIdForContact(contactId) };
+            } else {
+                chatIds = queryChatIds(db, selection, selectionArgs);
             }
+        }
 
-            //  Try to find an empty one
-            //  As we exit this, the push of i through map[] maps the ordinal bit position
-            //  in the 'slots' bitfield onto a key on the number row of the device keyboard.
-            //  The keyboard key is what is used to designate the shortcut.
-            for (int i = 0; i < 10; i++) {
-                if ((slots & (1 << i)) == 0) {
-                    return map[i];
-                }
+        int count = db.update(TABLE_CHATS, values, selection, selectionArgs);
+
+        if (count > 0 && chatIds != null) {
+            for (long chatId : chatIds) {
+                mQuickSwitchSlots.setLastMessageDate(chatId, lastMessageDate);
             }
-            
-            return -1;
+        }
+        return count;
+    }
+
+    //  If there are more than 10 chats and one with a quick switch slot ends then pick a chat
+    //  that doesn't have a slot and have it inhabit the newly emptied slot.
+    private void backfillQuickSwitchSlots(SQLiteDatabase db) {
+        long chatId;
+        while ((chatId = mQuickSwitchSlots.backfill()) != -1) {
+            ContentValues values = new ContentValues(1);
+            values.put(Im.Chats.SHORTCUT, mQuickSwitchSlots.getSlot(chatId));
+            db.update(TABLE_CHATS, values, Im.Chats._ID + "=" + chatId, null);
+        }
+    }
+
+    private long[] queryChatIds(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor c = db.query(TABLE_CHATS, CHAT_ID_PROJECTION, selection, selectionArgs,
+                null, null, null);
+        try {
+            long[] chatIds = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                chatIds[i] = c.getLong(0);
+            }
+            return chatIds;
         } finally {
             c.close();
         }
     }
 
     /**
-     * manual trigger for deleting contacts
+     * manual trigger for deleting contacts. The ids of the deleted contacts are collected
+     * in a temp table before they're deleted, so their rows can be found through the
+     * indexes on the contact ids, rather than by scanning each table for rows that have
+     * no contact left.
      */
-    private static final String DELETE_PRESENCE_SELECTION =
-            Im.Presence.CONTACT_ID + " in (select " +
-            PRESENCE_CONTACT_ID + " from " + TABLE_PRESENCE + " left outer join " + TABLE_CONTACTS +
-            " on " + PRESENCE_CONTACT_ID + '=' + CONTACT_ID + " where " + CONTACT_ID + " IS NULL)";
-
-    private static final String CHATS_CONTACT_ID = TABLE_CHATS + '.' + Im.Chats.CONTACT_ID;
-    private static final String DELETE_CHATS_SELECTION = Im.Chats.CONTACT_ID + " in (select "+
-            CHATS_CONTACT_ID + " from " + TABLE_CHATS + " left outer join " + TABLE_CONTACTS +
-            " on " + CHATS_CONTACT_ID + '=' + CONTACT_ID + " where " + CONTACT_ID + " IS NULL)";
+    private static final String TABLE_DELETED_CONTACTS = "deletedContacts";
+    private static final String DELETED_CONTACT_IDS =
+            " in (select _id from temp." + TABLE_DELETED_CONTACTS + ")";
 
-    private static final String GROUP_MEMBER_ID = TABLE_GROUP_MEMBERS + '.' + Im.GroupMembers.GROUP;
+    private static final String DELETE_PRESENCE_SELECTION =
+            Im.Presence.CONTACT_ID + DELETED_CONTACT_IDS;
+    private static final String DELETE_CHATS_SELECTION =
+            Im.Chats.CONTACT_ID + DELETED_CONTACT_IDS;
     private static final String DELETE_GROUP_MEMBER_SELECTION =
-            Im.GroupMembers.GROUP + " in (select "+
-            GROUP_MEMBER_ID + " from " + TABLE_GROUP_MEMBERS + " left outer join " + TABLE_CONTACTS +
-            " on " + GROUP_MEMBER_ID + '=' + CONTACT_ID + " where " + CONTACT_ID + " IS NULL)";
-
-    private static final String GROUP_MESSAGES_ID =
-            TABLE_GROUP_MESSAGES + '.' + Im.GroupMessages.GROUP;
+            Im.GroupMembers.GROUP + DELETED_CONTACT_IDS;
     private static final String DELETE_GROUP_MESSAGES_SELECTION =
-            Im.GroupMessages.GROUP + " in (select "+ GROUP_MESSAGES_ID + " from " +
-                    TABLE_GROUP_MESSAGES + " left outer join " + TABLE_CONTACTS + " on " +
-                    GROUP_MESSAGES_ID + '=' + CONTACT_ID + " where " + CONTACT_ID + " IS NULL)";
+            Im.GroupMessages.GROUP + DELETED_CONTACT_IDS;
+
+    /**
+     * Collects the ids of the contacts that are about to be deleted, for
+     * performContactRemovalCleanup(). Must be called in the same transaction as the delete.
+     */
+    private void collectDeletedContacts(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        db.execSQL("DELETE FROM temp." + TABLE_DELETED_CONTACTS + ";");
+        String sql = "INSERT INTO temp." + TABLE_DELETED_CONTACTS + " SELECT _id FROM "
+                + TABLE_CONTACTS + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection);
+        if (selectionArgs == null) {
+            db.execSQL(sql);
+        } else {
+            db.execSQL(sql, selectionArgs);
+        }
+    }
 
     private void performContactRemovalCleanup(long contactId) {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
         if (contactId > 0) {
             deleteWithContactId(db, contactId, TABLE_PRESENCE, Im.Presence.CONTACT_ID);
-            deleteWithContactId(db, contactId, TABLE_CHATS, Im.Chats.CONTACT_ID);
-            deleteWithContactId(db, contactId, TABLE_GROUP_MEMBERS, Im.GroupMembers.GROUP);
+            deleteChatWithContactId(db, contactId);
+            if (mGroupChatTablesCreated) {
+                deleteWithContactId(db, contactId, TABLE_GROUP_MEMBERS, Im.GroupMembers.GROUP);
+            }
             deleteWithContactId(db, contactId, TABLE_GROUP_MESSAGES, Im.GroupMessages.GROUP);
         } else {
             performComplexDelete(db, TABLE_PRESENCE, DELETE_PRESENCE_SELECTION, null);
-            performComplexDelete(db, TABLE_CHATS, DELETE_CHATS_SELECTION, null);
-            performComplexDelete(db, TABLE_GROUP_MEMBERS, DELETE_GROUP_MEMBER_SELECTION, null);
+            deleteChats(db, DELETE_CHATS_SELECTION, null);
+            if (mGroupChatTablesCreated) {
+                performComplexDelete(db, TABLE_GROUP_MEMBERS, DELETE_GROUP_MEMBER_SELECTION,
+                        null);
+            }
             performComplexDelete(db, TABLE_GROUP_MESSAGES, DELETE_GROUP_MESSAGES_SELECTION, null);
+            db.execSQL("DELETE FROM temp." + TABLE_DELETED_CONTACTS + ";");
+        }
+    }
+
+    /**
+     * Purges an account in its own transaction, for a query of accounts/purge/#.
+     *
+     * @return one row per table, with the number of rows removed from it.
+     */
+    private Cursor purgeAccountWithReport(Uri url) {
+        long account;
+        try {
+            account = Long.parseLong(url.getLastPathSegment());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid account id in " + url);
+        }
+
+        MatrixCursor report = new MatrixCursor(PURGE_REPORT_COLUMNS);
+        int count;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            count = purgeAccount(account, report);
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endWriteTransaction(db, successful);
+        }
+        if (count > 0) {
+            getContext().getContentResolver().notifyChange(url, null /* observer */,
+                    false /* sync */);
+        }
+        return report;
+    }
+
+    /**
+     * Deletes an account and all the data that belongs to it, in the caller's transaction,
+     * and notifies each kind of data that lost rows once.
+     *
+     * @param report receives a row with the number of rows removed for each table, may be
+     *        null.
+     * @return the number of rows removed from all the tables.
+     */
+    private int purgeAccount(final long account, MatrixCursor report) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final String where = "account=" + account;
+
+        // the rows that belong to the contacts of the account go first, by contact id
+        collectDeletedContacts(db, where, null);
+        int contactData = purgeTable(db, report, TABLE_PRESENCE, DELETE_PRESENCE_SELECTION);
+        int chats = deleteChats(db, DELETE_CHATS_SELECTION, null);
+        addToReport(report, TABLE_CHATS, chats);
+        contactData += chats;
+        if (mGroupChatTablesCreated) {
+            contactData += purgeTable(db, report, TABLE_GROUP_MEMBERS,
+                    DELETE_GROUP_MEMBER_SELECTION);
+        }
+        int groupMessages = purgeTable(db, report, TABLE_GROUP_MESSAGES,
+                DELETE_GROUP_MESSAGES_SELECTION);
+        db.execSQL("DELETE FROM temp." + TABLE_DELETED_CONTACTS + ";");
+
+        contactData += purgeTable(db, report, TABLE_CONTACTS, where);
+        contactData += purgeTable(db, report, TABLE_BLOCKED_LIST, where);
+        int contactLists = purgeTable(db, report, TABLE_CONTACT_LIST, where);
+        int other = purgeTable(db, report, TABLE_CONTACTS_ETAG, where);
+        int messages = purgeTable(db, report, TABLE_MESSAGES, where);
+        if (mGroupChatTablesCreated) {
+            other += purgeTable(db, report, TABLE_INVITATIONS, "accountId=" + account);
+        }
+        other += purgeTable(db, report, TABLE_SESSION_COOKIES, where);
+        int accounts = purgeTable(db, report, TABLE_ACCOUNT_STATUS, where);
+        // the account_cleanup trigger would delete them too, but they wouldn't be counted
+        accounts += purgeTable(db, report, TABLE_AVATARS, "account_id=" + account);
+        accounts += purgeTable(db, report, TABLE_ACCOUNTS, "_id=" + account);
+
+        int count = contactData + groupMessages + contactLists + messages + other + accounts;
+        Log.i(LOG_TAG, "purged account " + account + ": " + count + " rows");
+
+        invalidateContactIndexes(db, account);
+        resetChanges(db, TABLE_CONTACTS);
+        resetChanges(db, TABLE_PRESENCE);
+        resetChanges(db, TABLE_CHATS);
+        invalidateSessionCookies(db, account);
+        afterCommit(db, new Runnable() {
+            public void run() {
+                mAccountStatusCache.remove(account);
+            }
+        });
+
+        ContentResolver resolver = getContext().getContentResolver();
+        if (contactData > 0) {
+            resolver.notifyChange(Im.Contacts.CONTENT_URI, null);
+        }
+        if (contactLists > 0) {
+            resolver.notifyChange(Im.ContactList.CONTENT_URI, null);
+        }
+        if (messages > 0) {
+            resolver.notifyChange(Im.Messages.CONTENT_URI, null);
+        }
+        if (groupMessages > 0) {
+            resolver.notifyChange(Im.GroupMessages.CONTENT_URI, null);
+        }
+        if (accounts > 0) {
+            resolver.notifyChange(Im.Provider.CONTENT_URI_WITH_ACCOUNT, null);
+        }
+        return count;
+    }
+
+    private static int purgeTable(SQLiteDatabase db, MatrixCursor report, String table,
+            String where) {
+        int count = db.delete(table, where, null);
+        addToReport(report, table, count);
+        return count;
+    }
+
+    private static void addToReport(MatrixCursor report, String table, int count) {
+        if (report != null) {
+            report.addRow(new Object[] { table, count });
         }
     }
 
@@ -2191,12 +3421,13 @@ public class ImProvider extends ContentProvider {
         boolean contactDeleted = false;
         long deletedContactId = 0;
 
-        boolean backfillQuickSwitchSlots = false;
-        
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         switch (match) {
             case MATCH_PROVIDERS:
                 tableToChange = TABLE_PROVIDERS;
                 notifyProviderAccountContentUri = true;
+                // the provider_cleanup trigger deletes the settings of the providers
+                invalidateProviderSettings(db, null);
                 break;
 
             case MATCH_ACCOUNTS_BY_ID:
@@ -2207,12 +3438,18 @@ public class ImProvider extends ContentProvider {
                 notifyProviderAccountContentUri = true;
                 break;
 
+            case MATCH_ACCOUNT_PURGE:
+                try {
+                    return purgeAccount(Long.parseLong(url.getLastPathSegment()), null);
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Invalid account id in " + url);
+                }
+
             case MATCH_ACCOUNT_STATUS:
                 changedItemId = url.getPathSegments().get(1);
                 // fall through
             case MATCH_ACCOUNTS_STATUS:
                 tableToChange = TABLE_ACCOUNT_STATUS;
-                notifyProviderAccountContentUri = true;
                 break;
 
             case MATCH_CONTACTS:
@@ -2342,25 +3579,12 @@ public class ImProvider extends ContentProvider {
 
             case MATCH_CHATS:
                 tableToChange = TABLE_CHATS;
-                backfillQuickSwitchSlots = true;
                 break;
 
             case MATCH_CHATS_BY_ACCOUNT:
                 tableToChange = TABLE_CHATS;
 
-                if (whereClause.length() > 0) {
-                    whereClause.append(" AND ");
-                }
-                whereClause.append(Im.Chats.CONTACT_ID);
-                whereClause.append(" in (select ");
-                whereClause.append(Im.Contacts._ID);
-                whereClause.append(" from ");
-                whereClause.append(TABLE_CONTACTS);
-                whereClause.append(" where ");
-                whereClause.append(Im.Contacts.ACCOUNT);
-                whereClause.append("='");
-                whereClause.append(url.getLastPathSegment());
-                whereClause.append("')");
+                appendWhere(whereClause, CHAT_ACCOUNT, "=", url.getLastPathSegment());
 
                 if (DBG) log("deleteInternal (MATCH_CHATS_BY_ACCOUNT): sel => " +
                         whereClause.toString());
@@ -2387,19 +3611,7 @@ public class ImProvider extends ContentProvider {
             case MATCH_PRESENCE_BY_ACCOUNT:
                 tableToChange = TABLE_PRESENCE;
 
-                if (whereClause.length() > 0) {
-                    whereClause.append(" AND ");
-                }
-                whereClause.append(Im.Presence.CONTACT_ID);
-                whereClause.append(" in (select ");
-                whereClause.append(Im.Contacts._ID);
-                whereClause.append(" from ");
-                whereClause.append(TABLE_CONTACTS);
-                whereClause.append(" where ");
-                whereClause.append(Im.Contacts.ACCOUNT);
-                whereClause.append("='");
-                whereClause.append(url.getLastPathSegment());
-                whereClause.append("')");
+                appendWhere(whereClause, PRESENCE_ACCOUNT, "=", url.getLastPathSegment());
 
                 if (DBG) log("deleteInternal (MATCH_PRESENCE_BY_ACCOUNT): sel => " +
                         whereClause.toString());
@@ -2425,14 +3637,25 @@ public class ImProvider extends ContentProvider {
 
                 appendWhere(whereClause, Im.ProviderSettings.PROVIDER, "=", providerId);
                 appendWhere(whereClause, Im.ProviderSettings.NAME, "=", name);
+                invalidateProviderSettings(db, Long.parseLong(providerId));
                 break;
 
             case MATCH_OUTGOING_RMQ_MESSAGES:
                 tableToChange = TABLE_OUTGOING_RMQ_MESSAGES;
                 break;
 
+            case MATCH_OUTGOING_RMQ_ACK:
+                // acks everything up to the rmq id in one statement
+                try {
+                    return mOutgoingRmqQueue.ack(mOpenHelper.getWritableDatabase(),
+                            Long.parseLong(url.getLastPathSegment()));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Invalid rmq id in " + url);
+                }
+
             case MATCH_LAST_RMQ_ID:
                 tableToChange = TABLE_LAST_RMQ_ID;
+                mOutgoingRmqQueue.reset();
                 break;
 
             case MATCH_BRANDING_RESOURCE_MAP_CACHE:
@@ -2453,13 +3676,67 @@ public class ImProvider extends ContentProvider {
 
         if (DBG) log("delete from " + url + " WHERE  " + whereClause);
 
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        int count = db.delete(tableToChange, whereClause.toString(), whereArgs);
+        if (contactDeleted && deletedContactId == 0) {
+            collectDeletedContacts(db, whereClause.toString(), whereArgs);
+        }
+
+        int count;
+        if (TABLE_CHATS.equals(tableToChange)) {
+            count = deleteChats(db, whereClause.toString(), whereArgs);
+        } else {
+            count = db.delete(tableToChange, whereClause.toString(), whereArgs);
+        }
+
+        boolean notifyAccountStatusContentUri = false;
+        if (count > 0 && TABLE_ACCOUNT_STATUS.equals(tableToChange)) {
+            invalidateAccountStatus(db);
+            notifyAccountStatusContentUri = true;
+        }
+
+        if (count > 0 && TABLE_SESSION_COOKIES.equals(tableToChange)) {
+            if (match == MATCH_SESSIONS_BY_PROVIDER && userWhere == null) {
+                invalidateSessionCookies(db, Long.parseLong(changedItemId));
+            } else {
+                invalidateSessionCookies(db, null);
+            }
+        }
 
         if (contactDeleted && count > 0) {
             // since the contact cleanup triggers no longer work for cross database tables,
             // we have to do it by hand here.
             performContactRemovalCleanup(deletedContactId);
+
+            if (deletedContactId > 0) {
+                indexContactRemoved(db, deletedContactId);
+            } else {
+                invalidateContactIndexes(db, null);
+            }
+        }
+
+        if (count > 0) {
+            String rowId = null;
+            if (contactDeleted) {
+                if (deletedContactId > 0) {
+                    rowId = String.valueOf(deletedContactId);
+                } else {
+                    // can't tell whose presence and chats went with the contacts
+                    resetChanges(db, TABLE_PRESENCE);
+                    resetChanges(db, TABLE_CHATS);
+                }
+            } else if (userWhere == null && Im.Presence.CONTACT_ID.equals(idColumnName)) {
+                rowId = changedItemId;
+            }
+            recordChange(db, tableToChange, ChangeFeed.DELETE, rowId, null);
+        }
+
+        if (count > 0 && TABLE_PRESENCE.equals(tableToChange)) {
+            if (match == MATCH_PRESENCE_ID && userWhere == null) {
+                indexPresenceChanged(db, Long.parseLong(changedItemId), null);
+            } else if (match == MATCH_PRESENCE_BY_ACCOUNT) {
+                invalidatePresenceOrder(db, Long.parseLong(url.getLastPathSegment()));
+            } else {
+                invalidatePresenceOrder(db, null);
+            }
         }
 
         if (count > 0) {
@@ -2479,16 +3756,36 @@ public class ImProvider extends ContentProvider {
                 if (DBG) log("notify delete for " + Im.Provider.CONTENT_URI_WITH_ACCOUNT);
                 getContext().getContentResolver().notifyChange(Im.Provider.CONTENT_URI_WITH_ACCOUNT,
                         null);
-            }
-            
-            if (backfillQuickSwitchSlots) {
-                backfillQuickSwitchSlots();
+            } else if (notifyAccountStatusContentUri) {
+                // reaches the observers of every account's status
+                getContext().getContentResolver().notifyChange(Im.AccountStatus.CONTENT_URI, null);
             }
         }
 
         return count;
     }
 
+    /**
+     * Moves the presence and the chat of the contacts matching a selection to another
+     * account, along with the contacts. Called before the contacts are updated, while the
+     * selection still matches them.
+     */
+    private void moveContactRows(SQLiteDatabase db, Long account, String selection,
+            String[] selectionArgs) {
+        String contacts = "(SELECT _id FROM " + TABLE_CONTACTS
+                + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection) + ")";
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        Object[] bindArgs = new Object[argCount + 1];
+        bindArgs[0] = account;
+        for (int i = 0; i < argCount; i++) {
+            bindArgs[i + 1] = selectionArgs[i];
+        }
+        db.execSQL("UPDATE " + TABLE_PRESENCE + " SET " + PRESENCE_ACCOUNT + "=? WHERE "
+                + Im.Presence.CONTACT_ID + " IN " + contacts, bindArgs);
+        db.execSQL("UPDATE " + TABLE_CHATS + " SET " + CHAT_ACCOUNT + "=? WHERE "
+                + Im.Chats.CONTACT_ID + " IN " + contacts, bindArgs);
+    }
+
     public int updateInternal(Uri url, ContentValues values, String userWhere,
             String[] whereArgs) {
         String tableToChange;
@@ -2506,6 +3803,7 @@ public class ImProvider extends ContentProvider {
         boolean notifyContactListContentUri = false;
         boolean notifyProviderAccountContentUri = false;
 
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int match = mUrlMatcher.match(url);
         switch (match) {
             case MATCH_PROVIDERS_BY_ID:
@@ -2528,7 +3826,6 @@ public class ImProvider extends ContentProvider {
                 // fall through
             case MATCH_ACCOUNTS_STATUS:
                 tableToChange = TABLE_ACCOUNT_STATUS;
-                notifyProviderAccountContentUri = true;
                 break;
 
             case MATCH_CONTACTS:
@@ -2678,7 +3975,7 @@ public class ImProvider extends ContentProvider {
 
                 appendWhere(whereClause, Im.ProviderSettings.PROVIDER, "=", providerId);
                 appendWhere(whereClause, Im.ProviderSettings.NAME, "=", name);
-
+                invalidateProviderSettings(db, Long.parseLong(providerId));
                 break;
 
             case MATCH_OUTGOING_RMQ_MESSAGES:
@@ -2687,6 +3984,7 @@ public class ImProvider extends ContentProvider {
 
             case MATCH_LAST_RMQ_ID:
                 tableToChange = TABLE_LAST_RMQ_ID;
+                mOutgoingRmqQueue.reset();
                 break;
 
             default:
@@ -2702,8 +4000,67 @@ public class ImProvider extends ContentProvider {
 
         if (DBG) log("update " + url + " WHERE " + whereClause);
 
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        count = db.update(tableToChange, values, whereClause.toString(), whereArgs);
+        if (TABLE_CONTACTS.equals(tableToChange) && values.containsKey(Im.Contacts.ACCOUNT)) {
+            // while the selection still matches the contacts it moves
+            moveContactRows(db, values.getAsLong(Im.Contacts.ACCOUNT), whereClause.toString(),
+                    whereArgs);
+        }
+        if (TABLE_CHATS.equals(tableToChange)) {
+            long contactId = 0;
+            if (match == MATCH_CHATS_ID && userWhere == null) {
+                contactId = Long.parseLong(changedItemId);
+            }
+            count = updateChats(db, values, whereClause.toString(), whereArgs, contactId);
+        } else {
+            count = db.update(tableToChange, values, whereClause.toString(), whereArgs);
+        }
+
+        if (count > 0 && TABLE_SESSION_COOKIES.equals(tableToChange)) {
+            invalidateSessionCookies(db, null);
+        }
+
+        long[] changedAccountStatus = null;
+        boolean notifyAccountStatusContentUri = false;
+        if (count > 0 && TABLE_ACCOUNT_STATUS.equals(tableToChange)) {
+            if (match == MATCH_ACCOUNT_STATUS && userWhere == null) {
+                changedAccountStatus = refreshAccountStatus(db, "_id=" + changedItemId);
+            } else {
+                // can't tell which accounts changed, everyone requeries
+                invalidateAccountStatus(db);
+                notifyAccountStatusContentUri = true;
+            }
+        }
+
+        if (count > 0 && TABLE_CONTACTS.equals(tableToChange)
+                && (values.containsKey(Im.Contacts.USERNAME)
+                        || values.containsKey(Im.Contacts.NICKNAME)
+                        || values.containsKey(Im.Contacts.TYPE)
+                        || values.containsKey(Im.Contacts.ACCOUNT))) {
+            if (match == MATCH_CONTACTS_BY_PROVIDER
+                    && !values.containsKey(Im.Contacts.ACCOUNT)) {
+                invalidateContactIndexes(db, Long.parseLong(changedItemId));
+            } else {
+                invalidateContactIndexes(db, null);
+            }
+        }
+
+        if (count > 0) {
+            // contacts are named by _id, presence and chats by contact_id
+            boolean singleRow = userWhere == null && (TABLE_CONTACTS.equals(tableToChange)
+                    ? idColumnName == null : Im.Presence.CONTACT_ID.equals(idColumnName));
+            recordChange(db, tableToChange, ChangeFeed.UPDATE, singleRow ? changedItemId : null,
+                    values);
+        }
+
+        if (count > 0 && TABLE_PRESENCE.equals(tableToChange)
+                && values.containsKey(Im.Presence.PRESENCE_STATUS)) {
+            if (match == MATCH_PRESENCE_ID && userWhere == null) {
+                indexPresenceChanged(db, Long.parseLong(changedItemId),
+                        values.getAsInteger(Im.Presence.PRESENCE_STATUS));
+            } else {
+                invalidatePresenceOrder(db, null);
+            }
+        }
 
         if (count > 0) {
             // In most case, we query contacts with presence and chats joined, thus
@@ -2724,6 +4081,11 @@ public class ImProvider extends ContentProvider {
                 getContext().getContentResolver().notifyChange(Im.Provider.CONTENT_URI_WITH_ACCOUNT,
                         null);
             }
+            if (changedAccountStatus != null) {
+                notifyAccountStatusChange(changedAccountStatus);
+            } else if (notifyAccountStatusContentUri) {
+                getContext().getContentResolver().notifyChange(Im.AccountStatus.CONTENT_URI, null);
+            }
         }
 
         return count;
@@ -2732,9 +4094,65 @@ public class ImProvider extends ContentProvider {
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode)
             throws FileNotFoundException {
+        if (mUrlMatcher.match(uri) == MATCH_EXPORT) {
+            return openExport(uri, mode);
+        }
         return openFileHelper(uri, mode);
     }
 
+    /**
+     * Exports a table to a file in the cache directory with {@link BulkExporter}, and opens
+     * it for reading. The whole table is written to the file before the descriptor is
+     * returned, so the call takes as long as the export, and fails right away if the cache
+     * directory doesn't have room for it. The file is deleted right away, the descriptor
+     * keeps it readable until the caller closes it.
+     */
+    private ParcelFileDescriptor openExport(Uri uri, String mode)
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Exports can only be read: " + uri);
+        }
+        BulkExporter.Table table = BulkExporter.getTable(uri.getLastPathSegment());
+        if (table == null) {
+            throw new FileNotFoundException("No export for " + uri);
+        }
+        Long account = null;
+        String param = uri.getQueryParameter(BulkExporter.ACCOUNT_PARAMETER);
+        if (param != null) {
+            try {
+                account = Long.parseLong(param);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid account in " + uri);
+            }
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        File dir = getContext().getCacheDir();
+        StatFs stat = new StatFs(dir.getPath());
+        long available = (long) stat.getAvailableBlocks() * stat.getBlockSize();
+        long size = BulkExporter.estimateSize(db, table, account);
+        if (size > available) {
+            Log.e(LOG_TAG, "export of " + uri + " needs " + size + " bytes, "
+                    + available + " available");
+            throw new FileNotFoundException("Not enough space to export " + uri);
+        }
+
+        File file = null;
+        try {
+            file = File.createTempFile("export", null, dir);
+            int count = BulkExporter.export(db, table, account, file);
+            if (DBG) log("exported " + count + " rows of " + table.mName);
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "export of " + uri + " failed", ex);
+            throw new FileNotFoundException("Export failed: " + uri);
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
     private static void appendWhere(StringBuilder where, String columnName,
             String condition, Object value) {
         if (where.length() > 0) {
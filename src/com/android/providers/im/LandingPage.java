@@ -20,27 +20,33 @@ import android.app.ListActivity;
 import android.app.ActivityManagerNative;
 import android.app.ActivityThread;
 import android.app.Application;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DataSetObserver;
 import android.im.IImPlugin;
 import android.im.ImPluginConsts;
 import android.im.BrandingResourceIDs;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.RemoteException;
 import android.os.IBinder;
 import android.provider.Im;
 import android.util.Log;
 import android.util.AttributeSet;
+import android.util.SparseIntArray;
 import android.view.ContextMenu;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.Window;
 import android.view.ViewGroup;
 import android.view.LayoutInflater;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -50,6 +56,7 @@ import android.widget.CursorAdapter;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.lang.reflect.Method;
@@ -71,6 +78,7 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
     private static final int ID_ADD_ACCOUNT = Menu.FIRST + 6;
     private static final int ID_VIEW_CONTACT_LIST = Menu.FIRST + 7;
     private static final int ID_SETTINGS = Menu.FIRST + 8;
+    private static final int ID_SIGN_IN_ALL = Menu.FIRST + 9;
 
     private ProviderAdapter mAdapter;
     private Cursor mProviderCursor;
@@ -86,6 +94,7 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
             Im.Provider.ACTIVE_ACCOUNT_LOCKED,
             Im.Provider.ACCOUNT_PRESENCE_STATUS,
             Im.Provider.ACCOUNT_CONNECTION_STATUS,
+            ImProvider.PROVIDER_ACCOUNT_KEEP_SIGNED_IN,
     };
 
     private static final int PROVIDER_ID_COLUMN = 0;
@@ -98,17 +107,41 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
     private static final int ACTIVE_ACCOUNT_LOCKED = 7;
     private static final int ACCOUNT_PRESENCE_STATUS = 8;
     private static final int ACCOUNT_CONNECTION_STATUS = 9;
+    private static final int ACTIVE_ACCOUNT_KEEP_SIGNED_IN_COLUMN = 10;
 
     private static final String PROVIDER_SELECTION = "providers.name!=?";
 
+    private static final Uri ACCOUNT_PURGE_URI =
+            Uri.withAppendedPath(Im.Account.CONTENT_URI, "purge");
+
+    // the status of the accounts, read from memory rather than the providers/accounts join
+    private static final Uri CACHED_ACCOUNT_STATUS_URI =
+            Uri.withAppendedPath(Im.AccountStatus.CONTENT_URI, "cached");
+
+    private static final String[] ACCOUNT_STATUS_PROJECTION = {
+            Im.AccountStatus.PRESENCE_STATUS,
+            Im.AccountStatus.CONNECTION_STATUS,
+    };
+
+    private static final int ACCOUNT_STATUS_PRESENCE_COLUMN = 0;
+    private static final int ACCOUNT_STATUS_CONNECTION_COLUMN = 1;
+
     private HashMap<String, PluginInfo> mProviderToPluginMap;
-    private HashMap<Long, PluginInfo> mAccountToPluginMap;
-    private HashMap<Long, BrandingResources> mBrandingResources;
+    private AccountIndex mAccountIndex;
+    private final Handler mHandler = new Handler();
+    private LongSparseArray<BrandingResources> mBrandingResources;
     private BrandingResources mDefaultBrandingResources;
+    private PluginMetadataCache mPluginMetadataCache;
+    private boolean mPluginsStarted;
+    private SignInOutQueue mSignInOutQueue;
 
     private String[] mProviderSelectionArgs = new String[1];
 
     public class PluginInfo {
+        /**
+         * The plugin object. This is null until the plugin class is loaded, see
+         * {@link #getPlugin()}.
+         */
         public IImPlugin mPlugin;
         /**
          * The name of the package that the plugin is in.
@@ -125,12 +158,52 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
          */
         public String mSrcPath;
 
+        /**
+         * The resource package name for each provider supported by the plugin.
+         */
+        public HashMap<String, String> mResourcePackageNames;
+
+        /**
+         * Whether the plugin has changed since its metadata was last cached, in which case
+         * anything else cached from the plugin is out of date too.
+         */
+        public boolean mMetadataRefreshed;
+
         public PluginInfo(IImPlugin plugin, String packageName, String className,
                 String srcPath) {
             mPackageName = packageName;
             mClassName = className;
             mSrcPath = srcPath;
             mPlugin = plugin;
+            mResourcePackageNames = new HashMap<String, String>();
+        }
+
+        /**
+         * Gets the plugin object, loading the plugin class from its package if it hasn't
+         * been loaded yet.
+         *
+         * @return the plugin object, or null if the plugin can't be loaded.
+         */
+        public IImPlugin getPlugin() {
+            if (mPlugin == null) {
+                mPlugin = loadPlugin(mClassName, mSrcPath);
+                if (mPlugin != null && mPluginsStarted) {
+                    try {
+                        mPlugin.onStart();
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Could not start plugin " + mPackageName, e);
+                    }
+                }
+            }
+            return mPlugin;
+        }
+
+        /**
+         * Gets the name of the package to load the branding resources of a provider from.
+         */
+        public String getResourcePackageName(String providerName) {
+            String packageName = mResourcePackageNames.get(providerName);
+            return packageName == null ? mPackageName : packageName;
         }
     };
 
@@ -138,8 +211,10 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
     protected void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
+        requestWindowFeature(Window.FEATURE_PROGRESS);
         setTitle(R.string.landing_page_title);
 
+        mPluginMetadataCache = new PluginMetadataCache(this);
         if (!loadPlugins()) {
             Log.e(TAG, "[onCreate] load plugin failed, no plugin found!");
             finish();
@@ -157,30 +232,46 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
                 Im.Provider.DEFAULT_SORT_ORDER);
         mAdapter = new ProviderAdapter(this, mProviderCursor);
         setListAdapter(mAdapter);
-        
-        rebuildAccountToPluginMap();
 
-        mBrandingResources = new HashMap<Long, BrandingResources>();
+        // keep the account index up to date whenever mProviderCursor is requeried
+        mAccountIndex = new AccountIndex();
+        mAccountIndex.sync();
+        mProviderCursor.registerDataSetObserver(mAccountIndex);
+
+        mBrandingResources = new LongSparseArray<BrandingResources>();
         loadDefaultBrandingRes();
         loadBrandingResources();
 
         registerForContextMenu(getListView());
+
+        mSignInOutQueue = new SignInOutQueue();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mAccountIndex != null) {
+            mAccountIndex.close();
+        }
+        if (mSignInOutQueue != null) {
+            mSignInOutQueue.shutdown();
+        }
     }
 
     @Override
     protected void onRestart() {
         super.onRestart();
 
-        // refresh the accountToPlugin map after mProviderCursor is requeried
-        if (!rebuildAccountToPluginMap()) {
-            Log.w(TAG, "[onRestart] rebuiltAccountToPluginMap failed, reload plugins...");
+        // mProviderCursor has been requeried by now, which refreshed the account index.
+        if (mAccountIndex.getAccountsWithoutPluginCount() > 0) {
+            Log.w(TAG, "[onRestart] no plugin found for some accounts, reload plugins...");
             
             if (!loadPlugins()) {
                 Log.e(TAG, "[onRestart] load plugin failed, no plugin found!");
                 finish();
                 return;
             }
-            rebuildAccountToPluginMap();
+            mAccountIndex.resolvePlugins();
         }
 
         startPlugins();
@@ -208,75 +299,109 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
                 continue;
             }
 
-            IImPlugin plugin = null;
-
-            // Load the plug-in directly from the apk instead of binding the service
-            // and calling through the IPC binder API. It's more effective in this way
-            // and we can avoid the async behaviors of binding service.
-            PathClassLoader classLoader = new PathClassLoader(serviceInfo.applicationInfo.sourceDir,
-                    getClassLoader());
-            try {
-                if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    log("loadPlugin: load class " + serviceInfo.name);
+            String srcPath = serviceInfo.applicationInfo.sourceDir;
+            PluginInfo pluginInfo = new PluginInfo(null,
+                    serviceInfo.packageName,
+                    serviceInfo.name,
+                    srcPath);
+
+            // Only load the plugin class if what we know about it is out of date. Otherwise
+            // the plugin is loaded on demand, e.g. when signing in.
+            PluginMetadataCache.Entry entry = mPluginMetadataCache.get(serviceInfo.packageName,
+                    serviceInfo.name, srcPath);
+            if (entry == null) {
+                IImPlugin plugin = loadPlugin(serviceInfo.name, srcPath);
+                if (plugin == null) {
+                    continue;
                 }
-                Class cls = classLoader.loadClass(serviceInfo.name);
-                Object newInstance = cls.newInstance();
-                Method m;
-
-                // call "attach" method, so the plugin will get initialized with the proper context
-                m = cls.getMethod("attach", Context.class, ActivityThread.class, String.class,
-                        IBinder.class, Application.class, Object.class);
-                m.invoke(newInstance,
-                        new Object[] {this, null, serviceInfo.name, null, getApplication(),
-                                ActivityManagerNative.getDefault()});
-
-                // call "bind" to get the plugin object
-                m = cls.getMethod("onBind", Intent.class);
-                plugin = (IImPlugin)m.invoke(newInstance, new Object[]{null});
-            } catch (ClassNotFoundException e) {
-                Log.e(TAG, "Failed load the plugin", e);
-            } catch (IllegalAccessException e) {
-                Log.e(TAG, "Failed load the plugin", e);
-            } catch (InstantiationException e) {
-                Log.e(TAG, "Failed load the plugin", e);
-            } catch (SecurityException e) {
-                Log.e(TAG, "Failed load the plugin", e);
-            } catch (NoSuchMethodException e) {
-                Log.e(TAG, "Failed load the plugin", e);
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "Failed load the plugin", e);
-            } catch (InvocationTargetException e) {
-                Log.e(TAG, "Failed load the plugin", e);
-            }
-
-            if (plugin != null) {
-                if (Log.isLoggable(TAG, Log.DEBUG)) log("loadPlugin: plugin " + plugin + " loaded");
-                ArrayList<String> providers = getSupportedProviders(plugin);
 
+                ArrayList<String> providers = getSupportedProviders(plugin);
                 if (providers == null || providers.size() == 0) {
                     Log.e(TAG, "Ignore bad IM frontdoor plugin: " + info + ". No providers found");
                     continue;
                 }
 
-                PluginInfo pluginInfo = new PluginInfo(plugin,
-                        serviceInfo.packageName,
-                        serviceInfo.name,
-                        serviceInfo.applicationInfo.sourceDir);
-
+                entry = new PluginMetadataCache.Entry(serviceInfo.packageName,
+                        serviceInfo.name, srcPath);
                 for (String providerName : providers) {
-                    mProviderToPluginMap.put(providerName, pluginInfo);
+                    entry.mProviders.add(providerName);
+                    String resPackage = getResourcePackageName(plugin, providerName);
+                    if (resPackage != null) {
+                        entry.mResourcePackageNames.put(providerName, resPackage);
+                    }
                 }
+                mPluginMetadataCache.put(entry);
+
+                pluginInfo.mPlugin = plugin;
+                pluginInfo.mMetadataRefreshed = true;
+            }
+
+            pluginInfo.mResourcePackageNames.putAll(entry.mResourcePackageNames);
+            for (String providerName : entry.mProviders) {
+                mProviderToPluginMap.put(providerName, pluginInfo);
             }
         }
 
         return mProviderToPluginMap.size() > 0;
     }
 
+    private IImPlugin loadPlugin(String className, String srcPath) {
+        IImPlugin plugin = null;
+
+        // Load the plug-in directly from the apk instead of binding the service
+        // and calling through the IPC binder API. It's more effective in this way
+        // and we can avoid the async behaviors of binding service.
+        PathClassLoader classLoader = new PathClassLoader(srcPath, getClassLoader());
+        try {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                log("loadPlugin: load class " + className);
+            }
+            Class cls = classLoader.loadClass(className);
+            Object newInstance = cls.newInstance();
+            Method m;
+
+            // call "attach" method, so the plugin will get initialized with the proper context
+            m = cls.getMethod("attach", Context.class, ActivityThread.class, String.class,
+                    IBinder.class, Application.class, Object.class);
+            m.invoke(newInstance,
+                    new Object[] {this, null, className, null, getApplication(),
+                            ActivityManagerNative.getDefault()});
+
+            // call "bind" to get the plugin object
+            m = cls.getMethod("onBind", Intent.class);
+            plugin = (IImPlugin)m.invoke(newInstance, new Object[]{null});
+        } catch (ClassNotFoundException e) {
+            Log.e(TAG, "Failed load the plugin", e);
+        } catch (IllegalAccessException e) {
+            Log.e(TAG, "Failed load the plugin", e);
+        } catch (InstantiationException e) {
+            Log.e(TAG, "Failed load the plugin", e);
+        } catch (SecurityException e) {
+            Log.e(TAG, "Failed load the plugin", e);
+        } catch (NoSuchMethodException e) {
+            Log.e(TAG, "Failed load the plugin", e);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Failed load the plugin", e);
+        } catch (InvocationTargetException e) {
+            Log.e(TAG, "Failed load the plugin", e);
+        }
+
+        if (plugin != null) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) log("loadPlugin: plugin " + plugin + " loaded");
+        }
+        return plugin;
+    }
+
     private void startPlugins() {
+        mPluginsStarted = true;
         Iterator<PluginInfo> itor = mProviderToPluginMap.values().iterator();
 
         while (itor.hasNext()) {
             PluginInfo pluginInfo = itor.next();
+            if (pluginInfo.mPlugin == null) {
+                // not loaded yet, it will be started when it's loaded.
+                continue;
+            }
             try {
                 pluginInfo.mPlugin.onStart();
             } catch (RemoteException e) {
@@ -286,10 +411,14 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
     }
 
     private void stopPlugins() {
+        mPluginsStarted = false;
         Iterator<PluginInfo> itor = mProviderToPluginMap.values().iterator();
 
         while (itor.hasNext()) {
             PluginInfo pluginInfo = itor.next();
+            if (pluginInfo.mPlugin == null) {
+                continue;
+            }
             try {
                 pluginInfo.mPlugin.onStop();
             } catch (RemoteException e) {
@@ -310,8 +439,17 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
         return providers;
     }
 
+    private String getResourcePackageName(IImPlugin plugin, String providerName) {
+        try {
+            return plugin.getResourcePackageNameForProvider(providerName);
+        } catch (RemoteException ex) {
+            Log.e(TAG, "getResourcePackageNameForProvider caught ", ex);
+        }
+        return null;
+    }
+
     private void loadDefaultBrandingRes() {
-        HashMap<Integer, Integer> resMapping = new HashMap<Integer, Integer>();
+        SparseIntArray resMapping = new SparseIntArray();
 
         resMapping.put(BrandingResourceIDs.DRAWABLE_LOGO, R.drawable.imlogo_s);
         resMapping.put(BrandingResourceIDs.DRAWABLE_PRESENCE_ONLINE,
@@ -331,10 +469,9 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
     }
 
     private void loadBrandingResources() {
-        mProviderCursor.moveToFirst();
-        do {
-            long providerId = mProviderCursor.getLong(PROVIDER_ID_COLUMN);
-            String providerName = mProviderCursor.getString(PROVIDER_NAME_COLUMN);
+        for (AccountIndex.Entry entry : mAccountIndex.getEntries()) {
+            long providerId = entry.mProviderId;
+            String providerName = entry.mProviderName;
             PluginInfo pluginInfo = mProviderToPluginMap.get(providerName);
 
             if (pluginInfo == null) {
@@ -342,12 +479,12 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
                 continue;
             }
             
-            if (!mBrandingResources.containsKey(providerId)) {
-                BrandingResources res = new BrandingResources(this, pluginInfo, providerName,
-                        mDefaultBrandingResources);
+            if (mBrandingResources.get(providerId) == null) {
+                BrandingResources res = new BrandingResources(this, pluginInfo, providerId,
+                        providerName, mDefaultBrandingResources);
                 mBrandingResources.put(providerId, res);
             }
-        } while (mProviderCursor.moveToNext()) ;
+        }
     }
 
     public BrandingResources getBrandingResource(long providerId) {
@@ -355,52 +492,14 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
         return res == null ? mDefaultBrandingResources : res;
     }
 
-    private boolean rebuildAccountToPluginMap() {
-        if (Log.isLoggable(TAG, Log.DEBUG)) {
-            log("rebuildAccountToPluginMap");
-        }
-        
-        if (mAccountToPluginMap != null) {
-            mAccountToPluginMap.clear();
-        }
-        
-        mAccountToPluginMap = new HashMap<Long, PluginInfo>();
-
-        mProviderCursor.moveToFirst();
-
-        boolean retVal = true;
-
-        do {
-            long accountId = mProviderCursor.getLong(ACTIVE_ACCOUNT_ID_COLUMN);
-
-            if (accountId == 0) {
-                continue;
-            }
-            
-            String name = mProviderCursor.getString(PROVIDER_NAME_COLUMN);
-            PluginInfo pluginInfo = mProviderToPluginMap.get(name);
-            if (pluginInfo != null) {
-                if (Log.isLoggable(TAG, Log.DEBUG)) {
-                    log("rebuildAccountToPluginMap: add plugin for acct=" + accountId + ", provider=" + name);
-                }
-                mAccountToPluginMap.put(accountId, pluginInfo);
-            } else {
-                Log.w(TAG, "[LandingPage] no plugin found for " + name);
-                retVal = false;
-            }
-        } while (mProviderCursor.moveToNext()) ;
-
-        return retVal;
-    }
-
     private void signIn(long accountId) {
         if (accountId == 0) {
             Log.w(TAG, "signIn: account id is 0, bail");
             return;
         }
 
-        boolean isAccountEditible = mProviderCursor.getInt(ACTIVE_ACCOUNT_LOCKED) == 0;
-        if (isAccountEditible && mProviderCursor.isNull(ACTIVE_ACCOUNT_PW_COLUMN)) {
+        if (needsPassword(mProviderCursor.getInt(ACTIVE_ACCOUNT_LOCKED) != 0,
+                !mProviderCursor.isNull(ACTIVE_ACCOUNT_PW_COLUMN))) {
             // no password, edit the account
             if (Log.isLoggable(TAG, Log.DEBUG)) log("no pw for account " + accountId);
             Intent intent = getEditAccountIntent();
@@ -409,63 +508,148 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
         }
 
 
-        PluginInfo pluginInfo = mAccountToPluginMap.get(accountId);
-        if (pluginInfo == null) {
+        PluginInfo pluginInfo = mAccountIndex.getPluginForAccount(accountId);
+        IImPlugin plugin = pluginInfo == null ? null : pluginInfo.getPlugin();
+        if (plugin == null) {
             Log.e(TAG, "signIn: cannot find plugin for account " + accountId);
             return;
         }
 
         try {
             if (Log.isLoggable(TAG, Log.DEBUG)) log("sign in for account " + accountId);
-            pluginInfo.mPlugin.signIn(accountId);
+            plugin.signIn(accountId);
         } catch (RemoteException ex) {
             Log.e(TAG, "signIn failed", ex);
         }
     }
 
+    /**
+     * Tells whether an account has to be edited to enter its password before it can be
+     * signed in. The password of a locked account is taken care of by its plugin.
+     */
+    private static boolean needsPassword(boolean locked, boolean hasPassword) {
+        return !locked && !hasPassword;
+    }
+
     boolean isSigningIn(Cursor cursor) {
-        int connectionStatus = cursor.getInt(ACCOUNT_CONNECTION_STATUS);
-        return connectionStatus == Im.ConnectionStatus.CONNECTING;
+        return getConnectionStatus(cursor) == Im.ConnectionStatus.CONNECTING;
     }
 
     boolean isSignedIn(Cursor cursor) {
-        int connectionStatus = cursor.getInt(ACCOUNT_CONNECTION_STATUS);
-        return connectionStatus == Im.ConnectionStatus.ONLINE;
+        return getConnectionStatus(cursor) == Im.ConnectionStatus.ONLINE;
+    }
+
+    private int getConnectionStatus(Cursor cursor) {
+        return getConnectionStatus(cursor.getLong(ACTIVE_ACCOUNT_ID_COLUMN),
+                cursor.getInt(ACCOUNT_CONNECTION_STATUS));
+    }
+
+    /**
+     * Gets the latest known connection status of an account. The account index is told about
+     * status changes before mProviderCursor is, if it ever is.
+     */
+    int getConnectionStatus(long accountId, int defaultStatus) {
+        AccountIndex.Entry entry = mAccountIndex.getAccount(accountId);
+        return entry == null ? defaultStatus : entry.mConnectionStatus;
+    }
+
+    int getPresenceStatus(long accountId, int defaultStatus) {
+        AccountIndex.Entry entry = mAccountIndex.getAccount(accountId);
+        return entry == null ? defaultStatus : entry.mPresenceStatus;
     }
 
     private boolean allAccountsSignedOut() {
-        mProviderCursor.moveToFirst();
-        do {
-            if (isSignedIn(mProviderCursor)) {
-                return false;
+        return mAccountIndex.getSignedInCount() == 0;
+    }
+
+    private void signoutAll() {
+        HashMap<IImPlugin, ArrayList<Long>> accounts = new HashMap<IImPlugin, ArrayList<Long>>();
+        for (AccountIndex.Entry entry : mAccountIndex.getEntries()) {
+            if (entry.mAccountId != 0
+                    && entry.mConnectionStatus != Im.ConnectionStatus.OFFLINE) {
+                addToBatch(accounts, entry.mAccountId);
             }
-        } while (mProviderCursor.moveToNext()) ;
+        }
 
-        return true;
+        if (Log.isLoggable(TAG, Log.DEBUG)) log("signoutAll: " + accounts.size() + " plugins");
+        mSignInOutQueue.signOut(accounts, mBatchProgressCallback);
     }
 
-    private void signoutAll() {
-        do {
-            long accountId = mProviderCursor.getLong(ACTIVE_ACCOUNT_ID_COLUMN);
-            signOut(accountId);
-        } while (mProviderCursor.moveToNext()) ;
+    /**
+     * Signs in all the active accounts that have "keep signed in" set and are not
+     * signed in yet.
+     */
+    private void signInAllKeepSignedIn() {
+        HashMap<IImPlugin, ArrayList<Long>> accounts = getKeepSignedInAccountsToSignIn();
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            log("signInAllKeepSignedIn: " + accounts.size() + " plugins");
+        }
+        mSignInOutQueue.signIn(accounts, mBatchProgressCallback);
     }
 
+    /**
+     * Gets the active accounts that have "keep signed in" set, are signed out and can be
+     * signed in without asking for their password, grouped by plugin.
+     */
+    private HashMap<IImPlugin, ArrayList<Long>> getKeepSignedInAccountsToSignIn() {
+        HashMap<IImPlugin, ArrayList<Long>> accounts = new HashMap<IImPlugin, ArrayList<Long>>();
+        for (AccountIndex.Entry entry : mAccountIndex.getEntries()) {
+            if (entry.isWaitingToSignIn()) {
+                addToBatch(accounts, entry.mAccountId);
+            }
+        }
+        return accounts;
+    }
+
+    private void addToBatch(HashMap<IImPlugin, ArrayList<Long>> accounts, long accountId) {
+        PluginInfo pluginInfo = mAccountIndex.getPluginForAccount(accountId);
+        IImPlugin plugin = pluginInfo == null ? null : pluginInfo.getPlugin();
+        if (plugin == null) {
+            Log.e(TAG, "cannot find plugin for account " + accountId);
+            return;
+        }
+
+        ArrayList<Long> ids = accounts.get(plugin);
+        if (ids == null) {
+            ids = new ArrayList<Long>();
+            accounts.put(plugin, ids);
+        }
+        ids.add(accountId);
+    }
+
+    private final SignInOutQueue.Callback mBatchProgressCallback =
+            new SignInOutQueue.Callback() {
+        public void onProgress(int done, int total) {
+            if (total > 0) {
+                setProgressBarVisibility(true);
+                setProgress(done * (Window.PROGRESS_END - Window.PROGRESS_START) / total);
+            }
+        }
+
+        public void onFinished(int failed, int total) {
+            setProgressBarVisibility(false);
+            if (failed > 0) {
+                Log.w(TAG, failed + " of " + total + " accounts failed to sign in/out");
+            }
+        }
+    };
+
     private void signOut(long accountId) {
         if (accountId == 0) {
             Log.w(TAG, "signOut: account id is 0, bail");
             return;
         }
 
-        PluginInfo pluginInfo = mAccountToPluginMap.get(accountId);
-        if (pluginInfo == null) {
+        PluginInfo pluginInfo = mAccountIndex.getPluginForAccount(accountId);
+        IImPlugin plugin = pluginInfo == null ? null : pluginInfo.getPlugin();
+        if (plugin == null) {
             Log.e(TAG, "signOut: cannot find plugin for account " + accountId);
             return;
         }
 
         try {
             if (Log.isLoggable(TAG, Log.DEBUG)) log("sign out for account " + accountId);
-            pluginInfo.mPlugin.signOut(accountId);
+            plugin.signOut(accountId);
         } catch (RemoteException ex) {
             Log.e(TAG, "signOut failed", ex);
         }
@@ -475,6 +659,7 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
     public boolean onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
         menu.findItem(ID_SIGN_OUT_ALL).setVisible(!allAccountsSignedOut());
+        menu.findItem(ID_SIGN_IN_ALL).setVisible(mAccountIndex.getWaitingToSignInCount() > 0);
         return true;
     }
 
@@ -482,6 +667,8 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
     public boolean onCreateOptionsMenu(Menu menu) {
         menu.add(0, ID_SIGN_OUT_ALL, 0, R.string.menu_sign_out_all)
                 .setIcon(android.R.drawable.ic_menu_close_clear_cancel);
+        menu.add(0, ID_SIGN_IN_ALL, 0, R.string.menu_sign_in_all)
+                .setIcon(com.android.internal.R.drawable.ic_menu_login);
         return true;
     }
 
@@ -491,6 +678,10 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
             case ID_SIGN_OUT_ALL:
                 signoutAll();
                 return true;
+
+            case ID_SIGN_IN_ALL:
+                signInAllKeepSignedIn();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -561,7 +752,8 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
 
             case ID_REMOVE_ACCOUNT:
             {
-                Uri accountUri = ContentUris.withAppendedId(Im.Account.CONTENT_URI, accountId);
+                // removes the account together with everything that belongs to it
+                Uri accountUri = ContentUris.withAppendedId(ACCOUNT_PURGE_URI, accountId);
                 getContentResolver().delete(accountUri, null, null);
                 // Requery the cursor to force refreshing screen
                 providerCursor.requery();
@@ -616,11 +808,11 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
             // add account
             intent = getCreateAccountIntent();
         } else {
-            int state = mProviderCursor.getInt(ACCOUNT_CONNECTION_STATUS);
+            int state = getConnectionStatus(mProviderCursor);
 
             if (state == Im.ConnectionStatus.OFFLINE || state == Im.ConnectionStatus.CONNECTING) {
-                boolean isAccountEditible = mProviderCursor.getInt(ACTIVE_ACCOUNT_LOCKED) == 0;
-                if (isAccountEditible && mProviderCursor.isNull(ACTIVE_ACCOUNT_PW_COLUMN)) {
+                if (needsPassword(mProviderCursor.getInt(ACTIVE_ACCOUNT_LOCKED) != 0,
+                        !mProviderCursor.isNull(ACTIVE_ACCOUNT_PW_COLUMN))) {
                     // no password, edit the account
                     intent = getEditAccountIntent();
                 } else {
@@ -672,6 +864,303 @@ public class LandingPage extends ListActivity implements View.OnCreateContextMen
         Log.d(TAG, "[LandingPage]" + msg);
     }
 
+    /**
+     * An index of the providers shown on the landing page and their active accounts, keyed by
+     * provider id and account id. It keeps a count of the signed in accounts, so we don't have
+     * to rescan the cursor to find an account's plugin or to tell whether any account is
+     * signed in.
+     *
+     * The status of each account is observed on its own, so a sign in or a presence change
+     * only updates the entry of that account. mProviderCursor is only walked again when the
+     * providers or the accounts themselves changed, or after the cursor was invalidated, not
+     * every time it's requeried for a status change.
+     */
+    private final class AccountIndex extends DataSetObserver {
+        final class Entry {
+            long mProviderId;
+            String mProviderName;
+            long mAccountId;
+            int mConnectionStatus;
+            int mPresenceStatus;
+            // keep_signed_in is set and the account can sign in without asking for a password
+            boolean mKeepSignedIn;
+            PluginInfo mPluginInfo;
+            int mGeneration;
+            ContentObserver mStatusObserver;
+
+            boolean isSignedIn() {
+                return mAccountId != 0 && mConnectionStatus == Im.ConnectionStatus.ONLINE;
+            }
+
+            boolean isWaitingToSignIn() {
+                return mAccountId != 0 && mKeepSignedIn
+                        && mConnectionStatus == Im.ConnectionStatus.OFFLINE;
+            }
+        }
+
+        private final HashMap<Long, Entry> mProviders = new HashMap<Long, Entry>();
+        private final HashMap<Long, Entry> mAccounts = new HashMap<Long, Entry>();
+        private int mSignedInCount;
+        private int mWaitingToSignInCount;
+        private int mAccountsWithoutPluginCount;
+        private int mGeneration;
+        private boolean mFullSyncNeeded;
+
+        // the status observers keep the entries current, this one catches the accounts or
+        // providers being added, removed or changed.
+        private final ContentObserver mAccountsObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // mProviderCursor may not have been requeried yet, in which case onChanged
+                // syncs again once it is
+                mFullSyncNeeded = true;
+                sync();
+            }
+        };
+
+        AccountIndex() {
+            ContentResolver cr = getContentResolver();
+            cr.registerContentObserver(Im.Account.CONTENT_URI,
+                    true /* notifyForDescendents */, mAccountsObserver);
+            cr.registerContentObserver(Im.Provider.CONTENT_URI,
+                    false /* notifyForDescendents */, mAccountsObserver);
+        }
+
+        @Override
+        public void onChanged() {
+            if (mFullSyncNeeded) {
+                mFullSyncNeeded = false;
+                sync();
+            }
+        }
+
+        @Override
+        public void onInvalidated() {
+            // keep the last known state until the cursor is requeried, then read it all again,
+            // as the changes made in the meantime may not all have been observed.
+            mFullSyncNeeded = true;
+        }
+
+        /**
+         * Brings the index up to date with mProviderCursor, touching only the entries
+         * that changed.
+         */
+        void sync() {
+            Cursor c = mProviderCursor;
+            int pos = c.getPosition();
+            int generation = ++mGeneration;
+
+            for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+                long providerId = c.getLong(PROVIDER_ID_COLUMN);
+                Entry entry = mProviders.get(providerId);
+                if (entry == null) {
+                    entry = new Entry();
+                    entry.mProviderId = providerId;
+                    entry.mProviderName = c.getString(PROVIDER_NAME_COLUMN);
+                    mProviders.put(providerId, entry);
+                }
+                entry.mGeneration = generation;
+
+                long accountId = c.isNull(ACTIVE_ACCOUNT_ID_COLUMN) ?
+                        0 : c.getLong(ACTIVE_ACCOUNT_ID_COLUMN);
+                boolean keepSignedIn = c.getInt(ACTIVE_ACCOUNT_KEEP_SIGNED_IN_COLUMN) != 0
+                        && !needsPassword(c.getInt(ACTIVE_ACCOUNT_LOCKED) != 0,
+                                !c.isNull(ACTIVE_ACCOUNT_PW_COLUMN));
+                if (accountId != entry.mAccountId) {
+                    removeAccount(entry);
+                    entry.mAccountId = accountId;
+                    entry.mConnectionStatus = c.getInt(ACCOUNT_CONNECTION_STATUS);
+                    entry.mKeepSignedIn = keepSignedIn;
+                    addAccount(entry);
+                } else {
+                    setKeepSignedIn(entry, keepSignedIn);
+                    setConnectionStatus(entry, c.getInt(ACCOUNT_CONNECTION_STATUS));
+                }
+                entry.mPresenceStatus = c.getInt(ACCOUNT_PRESENCE_STATUS);
+            }
+
+            Iterator<Entry> itor = mProviders.values().iterator();
+            while (itor.hasNext()) {
+                Entry entry = itor.next();
+                if (entry.mGeneration != generation) {
+                    removeAccount(entry);
+                    itor.remove();
+                }
+            }
+
+            c.moveToPosition(pos);
+
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                log("AccountIndex.sync: " + mAccounts.size() + " accounts, " + mSignedInCount
+                        + " signed in, " + mWaitingToSignInCount + " waiting to sign in");
+            }
+        }
+
+        /**
+         * Looks up the plugins of all the accounts again, e.g. after the plugins are reloaded.
+         */
+        void resolvePlugins() {
+            mAccountsWithoutPluginCount = 0;
+            for (Entry entry : mAccounts.values()) {
+                entry.mPluginInfo = mProviderToPluginMap.get(entry.mProviderName);
+                if (entry.mPluginInfo == null) {
+                    mAccountsWithoutPluginCount++;
+                }
+            }
+        }
+
+        /**
+         * Reads the status of an account from the provider's cache, after it was notified
+         * that the status changed.
+         */
+        void refreshStatus(Entry entry) {
+            if (entry.mAccountId == 0) {
+                return;
+            }
+            Uri uri = ContentUris.withAppendedId(CACHED_ACCOUNT_STATUS_URI, entry.mAccountId);
+            Cursor c = getContentResolver().query(uri, ACCOUNT_STATUS_PROJECTION,
+                    null, null, null);
+            if (c == null) {
+                return;
+            }
+            try {
+                if (c.moveToFirst()) {
+                    entry.mPresenceStatus = c.getInt(ACCOUNT_STATUS_PRESENCE_COLUMN);
+                    setConnectionStatus(entry, c.getInt(ACCOUNT_STATUS_CONNECTION_COLUMN));
+                } else {
+                    // the status row was deleted, the account isn't signed in any more
+                    entry.mPresenceStatus = Im.Presence.OFFLINE;
+                    setConnectionStatus(entry, Im.ConnectionStatus.OFFLINE);
+                }
+            } finally {
+                c.close();
+            }
+            mAdapter.notifyDataSetChanged();
+        }
+
+        /**
+         * Stops observing the accounts and their status.
+         */
+        void close() {
+            getContentResolver().unregisterContentObserver(mAccountsObserver);
+            for (Entry entry : mAccounts.values()) {
+                unregisterStatusObserver(entry);
+            }
+        }
+
+        void setConnectionStatus(Entry entry, int connectionStatus) {
+            if (entry.mConnectionStatus == connectionStatus) {
+                return;
+            }
+            boolean wasSignedIn = entry.isSignedIn();
+            boolean wasWaiting = entry.isWaitingToSignIn();
+            entry.mConnectionStatus = connectionStatus;
+            if (wasSignedIn != entry.isSignedIn()) {
+                mSignedInCount += wasSignedIn ? -1 : 1;
+            }
+            if (wasWaiting != entry.isWaitingToSignIn()) {
+                mWaitingToSignInCount += wasWaiting ? -1 : 1;
+            }
+        }
+
+        private void setKeepSignedIn(Entry entry, boolean keepSignedIn) {
+            if (entry.mKeepSignedIn == keepSignedIn) {
+                return;
+            }
+            boolean wasWaiting = entry.isWaitingToSignIn();
+            entry.mKeepSignedIn = keepSignedIn;
+            if (wasWaiting != entry.isWaitingToSignIn()) {
+                mWaitingToSignInCount += wasWaiting ? -1 : 1;
+            }
+        }
+
+        private void addAccount(Entry entry) {
+            if (entry.mAccountId == 0) {
+                return;
+            }
+            mAccounts.put(entry.mAccountId, entry);
+            if (entry.isSignedIn()) {
+                mSignedInCount++;
+            }
+            if (entry.isWaitingToSignIn()) {
+                mWaitingToSignInCount++;
+            }
+            registerStatusObserver(entry);
+
+            entry.mPluginInfo = mProviderToPluginMap.get(entry.mProviderName);
+            if (entry.mPluginInfo == null) {
+                Log.w(TAG, "[LandingPage] no plugin found for " + entry.mProviderName);
+                mAccountsWithoutPluginCount++;
+            }
+        }
+
+        private void removeAccount(Entry entry) {
+            if (entry.mAccountId == 0) {
+                return;
+            }
+            mAccounts.remove(entry.mAccountId);
+            if (entry.isSignedIn()) {
+                mSignedInCount--;
+            }
+            if (entry.isWaitingToSignIn()) {
+                mWaitingToSignInCount--;
+            }
+            unregisterStatusObserver(entry);
+            if (entry.mPluginInfo == null) {
+                mAccountsWithoutPluginCount--;
+            }
+            entry.mPluginInfo = null;
+            entry.mAccountId = 0;
+        }
+
+        private void registerStatusObserver(final Entry entry) {
+            entry.mStatusObserver = new ContentObserver(mHandler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    refreshStatus(entry);
+                }
+            };
+            getContentResolver().registerContentObserver(
+                    ContentUris.withAppendedId(Im.AccountStatus.CONTENT_URI, entry.mAccountId),
+                    false /* notifyForDescendents */, entry.mStatusObserver);
+        }
+
+        private void unregisterStatusObserver(Entry entry) {
+            if (entry.mStatusObserver != null) {
+                getContentResolver().unregisterContentObserver(entry.mStatusObserver);
+                entry.mStatusObserver = null;
+            }
+        }
+
+        Collection<Entry> getEntries() {
+            return mProviders.values();
+        }
+
+        Entry getAccount(long accountId) {
+            return mAccounts.get(accountId);
+        }
+
+        PluginInfo getPluginForAccount(long accountId) {
+            Entry entry = mAccounts.get(accountId);
+            return entry == null ? null : entry.mPluginInfo;
+        }
+
+        int getSignedInCount() {
+            return mSignedInCount;
+        }
+
+        /**
+         * Gets the number of accounts "Sign in all" would sign in.
+         */
+        int getWaitingToSignInCount() {
+            return mWaitingToSignInCount;
+        }
+
+        int getAccountsWithoutPluginCount() {
+            return mAccountsWithoutPluginCount;
+        }
+    }
+
     private class ProviderListItemFactory implements LayoutInflater.Factory {
         public View onCreateView(String name, Context context, AttributeSet attrs) {
             if (name != null && name.equals(ProviderListItem.class.getName())) {
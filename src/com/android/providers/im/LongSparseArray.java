@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+/**
+ * Maps longs to Objects, like {@link android.util.SparseArray} does for ints. The keys are
+ * kept sorted in a primitive array, so lookups don't box the key. Meant for a handful of
+ * entries, such as the ids of the providers.
+ */
+class LongSparseArray<E> {
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+
+    public LongSparseArray() {
+        this(10);
+    }
+
+    public LongSparseArray(int initialCapacity) {
+        mKeys = new long[initialCapacity];
+        mValues = new Object[initialCapacity];
+        mSize = 0;
+    }
+
+    /**
+     * Gets the Object mapped from the specified key, or <code>null</code>
+     * if no such mapping has been made.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long key) {
+        int i = binarySearch(mKeys, mSize, key);
+        return i < 0 ? null : (E) mValues[i];
+    }
+
+    /**
+     * Adds a mapping from the specified key to the specified value,
+     * replacing the previous mapping from the specified key if there
+     * was one.
+     */
+    public void put(long key, E value) {
+        int i = binarySearch(mKeys, mSize, key);
+        if (i >= 0) {
+            mValues[i] = value;
+            return;
+        }
+
+        i = ~i;
+        if (mSize >= mKeys.length) {
+            int n = mKeys.length * 2 + 1;
+            long[] nkeys = new long[n];
+            Object[] nvalues = new Object[n];
+            System.arraycopy(mKeys, 0, nkeys, 0, mSize);
+            System.arraycopy(mValues, 0, nvalues, 0, mSize);
+            mKeys = nkeys;
+            mValues = nvalues;
+        }
+        if (mSize - i != 0) {
+            System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+            System.arraycopy(mValues, i, mValues, i + 1, mSize - i);
+        }
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+    }
+
+    /**
+     * Removes the mapping from the specified key, if there was any.
+     */
+    public void remove(long key) {
+        int i = binarySearch(mKeys, mSize, key);
+        if (i < 0) {
+            return;
+        }
+        System.arraycopy(mKeys, i + 1, mKeys, i, mSize - i - 1);
+        System.arraycopy(mValues, i + 1, mValues, i, mSize - i - 1);
+        mValues[--mSize] = null;
+    }
+
+    /**
+     * Returns the number of key-value mappings that this LongSparseArray
+     * currently stores.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    private static int binarySearch(long[] a, int len, long key) {
+        int low = 0;
+        int high = len - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midVal = a[mid];
+            if (midVal < key) {
+                low = mid + 1;
+            } else if (midVal > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return ~low;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.HashMap;
+
+/**
+ * Keeps the in-memory messages and groupMessages tables bounded. Each conversation keeps
+ * at most a fixed number of its most recent messages, and messages older than a maximum
+ * age are dropped. When the messages table is kept on disk it has its own limits, so the
+ * in-memory ones don't cut the history down.
+ *
+ * The number of messages of each conversation is counted as they are inserted. The count
+ * never goes below the real number of rows, so a conversation is only trimmed once it may
+ * be over the cap, and then by a batch of rows at a time rather than one row per insert.
+ */
+final class MessageTrimmer {
+    private static final boolean DBG = false;
+
+    // how often at most the messages are checked for their age
+    private static final long AGE_EVICTION_INTERVAL = 60 * 1000;
+
+    private static final String CLEAR_STALE_UNREAD_MESSAGE =
+            "UPDATE chats SET last_unread_message=NULL" +
+            " WHERE last_unread_message IS NOT NULL" +
+            " AND contact_id NOT IN (SELECT contacts._id FROM contacts JOIN messages" +
+            " ON (messages.contact = contacts.username AND messages.account = contacts.account))" +
+            " AND contact_id NOT IN (SELECT groupId FROM groupMessages)";
+
+    private final int mMaxPerConversation;
+    private final int mSlack;
+    private final long mMaxAgeSeconds;
+    private final int mMaxMessagesPerConversation;
+    private final int mMessagesSlack;
+    private final long mMaxMessageAgeSeconds;
+    private final boolean mCountExistingMessages;
+
+    private final HashMap<String, Integer> mCounts = new HashMap<String, Integer>();
+    private long mLastAgeEviction;
+
+    /**
+     * Creates a trimmer for messages and groupMessages tables that are both in memory.
+     *
+     * @param maxPerConversation the number of messages to keep per conversation, or 0 to
+     *        keep them all.
+     * @param maxAgeSeconds the age after which messages are dropped, or 0 to keep them
+     *        regardless of their age.
+     */
+    MessageTrimmer(int maxPerConversation, long maxAgeSeconds) {
+        this(maxPerConversation, maxAgeSeconds, maxPerConversation, maxAgeSeconds, false);
+    }
+
+    /**
+     * Creates a trimmer for a messages table kept on disk, next to an in-memory
+     * groupMessages table.
+     *
+     * @param maxPerConversation the number of group messages to keep per group, or 0 to
+     *        keep them all.
+     * @param maxAgeSeconds the age after which group messages are dropped, or 0 to keep them
+     *        regardless of their age.
+     * @param maxPersistedPerConversation the number of messages to keep on disk per
+     *        conversation, or 0 to keep them all.
+     * @param maxPersistedAgeSeconds the age after which messages are dropped from the disk,
+     *        or 0 to keep them regardless of their age.
+     */
+    MessageTrimmer(int maxPerConversation, long maxAgeSeconds, int maxPersistedPerConversation,
+            long maxPersistedAgeSeconds) {
+        this(maxPerConversation, maxAgeSeconds, maxPersistedPerConversation,
+                maxPersistedAgeSeconds, true);
+    }
+
+    private MessageTrimmer(int maxPerConversation, long maxAgeSeconds,
+            int maxMessagesPerConversation, long maxMessageAgeSeconds,
+            boolean countExistingMessages) {
+        mMaxPerConversation = maxPerConversation;
+        mSlack = Math.max(1, maxPerConversation / 4);
+        mMaxAgeSeconds = maxAgeSeconds;
+        mMaxMessagesPerConversation = maxMessagesPerConversation;
+        mMessagesSlack = Math.max(1, maxMessagesPerConversation / 4);
+        mMaxMessageAgeSeconds = maxMessageAgeSeconds;
+        // the messages kept on disk are already there when the table is opened
+        mCountExistingMessages = countExistingMessages;
+    }
+
+    /**
+     * Forgets all the counts, when the in-memory tables are created again.
+     */
+    synchronized void clear() {
+        mCounts.clear();
+        mLastAgeEviction = 0;
+    }
+
+    /**
+     * Called after a message was inserted into the messages table.
+     *
+     * @return the number of messages that were dropped.
+     */
+    int onMessageInserted(SQLiteDatabase db, long account, String contact) {
+        int count = 0;
+        if (contact == null || mMaxMessagesPerConversation <= 0) {
+            return evictOldMessages(db);
+        }
+
+        String conversation = "m/" + account + '/' + contact;
+        String where = "account=" + account + " AND contact=?";
+        String[] whereArgs = new String[] { contact };
+        if (mCountExistingMessages && !isCounted(conversation)) {
+            // includes the message just inserted
+            setCount(conversation, (int) DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM messages WHERE " + where, whereArgs) - 1);
+        }
+        if (shouldTrim(conversation, mMaxMessagesPerConversation, mMessagesSlack)) {
+            count = db.delete("messages", "_id IN (SELECT _id FROM messages WHERE " + where
+                    + " ORDER BY date DESC, _id DESC LIMIT -1 OFFSET "
+                    + mMaxMessagesPerConversation + ")", whereArgs);
+            if (DBG) log("trimmed " + count + " messages with " + contact);
+        }
+        return count + evictOldMessages(db);
+    }
+
+    /**
+     * Called after a message was inserted into the groupMessages table.
+     *
+     * @return the number of messages that were dropped.
+     */
+    int onGroupMessageInserted(SQLiteDatabase db, long groupId) {
+        int count = 0;
+        if (shouldTrim("g/" + groupId, mMaxPerConversation, mSlack)) {
+            count = db.delete("groupMessages", "_id IN (SELECT _id FROM groupMessages"
+                    + " WHERE groupId=" + groupId
+                    + " ORDER BY date DESC, _id DESC LIMIT -1 OFFSET " + mMaxPerConversation + ")",
+                    null);
+            if (DBG) log("trimmed " + count + " messages of group " + groupId);
+        }
+        return count + evictOldMessages(db);
+    }
+
+    private synchronized boolean isCounted(String conversation) {
+        return mCounts.containsKey(conversation);
+    }
+
+    private synchronized void setCount(String conversation, int count) {
+        mCounts.put(conversation, count);
+    }
+
+    private synchronized boolean shouldTrim(String conversation, int max, int slack) {
+        if (max <= 0) {
+            return false;
+        }
+        Integer count = mCounts.get(conversation);
+        int n = (count == null) ? 1 : count + 1;
+        if (n > max + slack) {
+            mCounts.put(conversation, max);
+            return true;
+        }
+        mCounts.put(conversation, n);
+        return false;
+    }
+
+    private int evictOldMessages(SQLiteDatabase db) {
+        if (mMaxAgeSeconds <= 0 && mMaxMessageAgeSeconds <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - mLastAgeEviction < AGE_EVICTION_INTERVAL) {
+                return 0;
+            }
+            mLastAgeEviction = now;
+        }
+
+        int count = 0;
+        if (mMaxMessageAgeSeconds > 0) {
+            count += db.delete("messages", "date<" + (now / 1000 - mMaxMessageAgeSeconds), null);
+        }
+        if (mMaxAgeSeconds > 0) {
+            count += db.delete("groupMessages", "date<" + (now / 1000 - mMaxAgeSeconds), null);
+        }
+        if (count > 0) {
+            // the conversations that were emptied no longer have an unread message
+            db.execSQL(CLEAR_STALE_UNREAD_MESSAGE);
+            if (DBG) log("evicted " + count + " old messages");
+        }
+        return count;
+    }
+
+    private static void log(String message) {
+        ImProvider.log("[MessageTrimmer] " + message);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Im;
+
+/**
+ * The queue of outgoing reliable messages (RMQ), kept in the outgoingRmqMessages table
+ * and ordered by rmq_id, and the allocator of the rmq ids.
+ *
+ * The ids are handed out from memory. The lastrmqid table holds the end of the block of
+ * ids reserved so far, and is only written when a new block is needed, so an id is never
+ * handed out twice, even across restarts. The callers are expected to hold a database
+ * transaction.
+ */
+final class OutgoingRmqQueue {
+    private static final String TABLE_OUTGOING_RMQ_MESSAGES = "outgoingRmqMessages";
+    private static final String TABLE_LAST_RMQ_ID = "lastrmqid";
+
+    private static final String LAST_RMQ_ID_ROW = "1";
+
+    // how many ids are reserved at a time
+    private static final int RMQ_ID_BLOCK_SIZE = 100;
+
+    // the next id to hand out, or -1 if it has to be read from the database
+    private long mNextRmqId = -1;
+    // the last id of the reserved block, as saved in lastrmqid
+    private long mReservedRmqId;
+    // the last id handed out, kept across reset() so the ids are never handed out again,
+    // even if lastrmqid was set lower
+    private long mLastRmqId;
+
+    /**
+     * Enqueues a batch of messages. The messages that don't have an rmq id get consecutive
+     * ids from the allocator, in order.
+     *
+     * @param encode true to store the payloads with {@link RmqPayloadCodec}.
+     * @return the number of messages enqueued.
+     */
+    int enqueue(SQLiteDatabase db, ContentValues[] messages, boolean encode) {
+        int missing = 0;
+        for (ContentValues message : messages) {
+            if (message.getAsLong(Im.OutgoingRmq.RMQ_ID) == null) {
+                missing++;
+            }
+        }
+
+        boolean explicitIds = missing < messages.length;
+        int count = 0;
+        try {
+            long nextRmqId = missing > 0 ? reserve(db, missing) : 0;
+            for (ContentValues message : messages) {
+                if (message.getAsLong(Im.OutgoingRmq.RMQ_ID) == null) {
+                    message.put(Im.OutgoingRmq.RMQ_ID, nextRmqId++);
+                }
+                if (encode) {
+                    encodePayload(message);
+                }
+                if (db.insert(TABLE_OUTGOING_RMQ_MESSAGES, null, message) > 0) {
+                    count++;
+                }
+            }
+        } catch (RuntimeException ex) {
+            // the reserved block may be rolled back with the transaction
+            reset();
+            throw ex;
+        }
+
+        if (explicitIds) {
+            // the caller picked ids of its own, make sure they're not handed out again
+            reset();
+        }
+        return count;
+    }
+
+    /**
+     * Moves the data of a message to the payload column, encoded. A payload given as a
+     * byte array is encoded as it is.
+     */
+    static void encodePayload(ContentValues message) {
+        byte[] payload = message.getAsByteArray(RmqPayloadCodec.PAYLOAD);
+        if (payload != null) {
+            message.put(RmqPayloadCodec.PAYLOAD, RmqPayloadCodec.encode(payload));
+        } else {
+            String data = message.getAsString(Im.OutgoingRmq.DATA);
+            if (data != null) {
+                message.put(RmqPayloadCodec.PAYLOAD, RmqPayloadCodec.encode(data));
+            }
+        }
+        message.remove(Im.OutgoingRmq.DATA);
+    }
+
+    /**
+     * Removes all the messages up to and including an rmq id, in one statement.
+     *
+     * @return the number of messages removed.
+     */
+    int ack(SQLiteDatabase db, long rmqId) {
+        return db.delete(TABLE_OUTGOING_RMQ_MESSAGES, Im.OutgoingRmq.RMQ_ID + "<=" + rmqId, null);
+    }
+
+    /**
+     * Reserves a range of consecutive rmq ids.
+     *
+     * @return the first id of the range.
+     */
+    synchronized long reserve(SQLiteDatabase db, int count) {
+        if (mNextRmqId < 0) {
+            mReservedRmqId = getLastRmqId(db);
+            mNextRmqId = Math.max(mReservedRmqId, mLastRmqId) + 1;
+        }
+
+        long first = mNextRmqId;
+        long last = first + count - 1;
+        if (last > mReservedRmqId) {
+            mReservedRmqId = last + RMQ_ID_BLOCK_SIZE;
+            setLastRmqId(db, mReservedRmqId);
+        }
+        mNextRmqId = last + 1;
+        mLastRmqId = last;
+        return first;
+    }
+
+    /**
+     * Forgets the ids reserved in memory, after lastrmqid was written directly or a
+     * reservation was rolled back. The next id is read from the database again, but is
+     * never below the ids already handed out.
+     */
+    synchronized void reset() {
+        mNextRmqId = -1;
+    }
+
+    // never below the id of a queued message
+    private static long getLastRmqId(SQLiteDatabase db) {
+        // lastrmqid holds a single row, and the max of the queue is read off its index
+        long last = DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(rmq_id), 0) FROM " + TABLE_LAST_RMQ_ID, null);
+        long queued = DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(rmq_id), 0) FROM " + TABLE_OUTGOING_RMQ_MESSAGES, null);
+        return Math.max(last, queued);
+    }
+
+    private static void setLastRmqId(SQLiteDatabase db, long rmqId) {
+        ContentValues values = new ContentValues(1);
+        values.put(Im.LastRmqId.RMQ_ID, rmqId);
+        if (db.update(TABLE_LAST_RMQ_ID, values, null, null) == 0) {
+            values.put(Im.LastRmqId._ID, LAST_RMQ_ID_ROW);
+            db.insert(TABLE_LAST_RMQ_ID, null, values);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A persistent cache of the metadata of the IM front door plugins. Loading a plugin
+ * means loading its classes from the apk, so we remember what we learned from the plugin
+ * the last time it was loaded, keyed by the path of the apk and its last modified time.
+ */
+public class PluginMetadataCache {
+    private static final String TAG = "IM";
+    private static final boolean LOCAL_DEBUG = false;
+
+    private static final String PREFS_NAME = "plugin_metadata";
+
+    private static final String KEY_SRC_PATH = ".src";
+    private static final String KEY_LAST_MODIFIED = ".mtime";
+    private static final String KEY_PROVIDERS = ".providers";
+    private static final String KEY_RESOURCE_PACKAGE = ".resPackage.";
+
+    private static final String PROVIDER_SEPARATOR = ",";
+
+    private final SharedPreferences mPrefs;
+
+    /**
+     * The cached metadata of one plugin.
+     */
+    public static class Entry {
+        public String mPackageName;
+        public String mClassName;
+        public String mSrcPath;
+        public long mLastModified;
+
+        /**
+         * The names of the IM service providers the plugin supports.
+         */
+        public ArrayList<String> mProviders;
+
+        /**
+         * The resource package name for each provider, if the plugin has one.
+         */
+        public HashMap<String, String> mResourcePackageNames;
+
+        public Entry(String packageName, String className, String srcPath) {
+            mPackageName = packageName;
+            mClassName = className;
+            mSrcPath = srcPath;
+            mLastModified = getLastModified(srcPath);
+            mProviders = new ArrayList<String>();
+            mResourcePackageNames = new HashMap<String, String>();
+        }
+    }
+
+    public PluginMetadataCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Gets the cached metadata of a plugin.
+     *
+     * @param packageName the name of the package that the plugin is in.
+     * @param className the name of the class that implements the plugin.
+     * @param srcPath the full path to the package that the plugin is in.
+     * @return the cached metadata, or null if there is none or the package has changed
+     *         since it was cached.
+     */
+    public Entry get(String packageName, String className, String srcPath) {
+        String key = getKey(packageName, className);
+
+        if (!srcPath.equals(mPrefs.getString(key + KEY_SRC_PATH, null))) {
+            return null;
+        }
+
+        long lastModified = getLastModified(srcPath);
+        if (lastModified == 0 || lastModified != mPrefs.getLong(key + KEY_LAST_MODIFIED, 0)) {
+            if (LOCAL_DEBUG) log("stale entry for " + key);
+            return null;
+        }
+
+        String providers = mPrefs.getString(key + KEY_PROVIDERS, null);
+        if (TextUtils.isEmpty(providers)) {
+            return null;
+        }
+
+        Entry entry = new Entry(packageName, className, srcPath);
+        for (String provider : TextUtils.split(providers, PROVIDER_SEPARATOR)) {
+            entry.mProviders.add(provider);
+            String resPackage = mPrefs.getString(key + KEY_RESOURCE_PACKAGE + provider, null);
+            if (resPackage != null) {
+                entry.mResourcePackageNames.put(provider, resPackage);
+            }
+        }
+
+        if (LOCAL_DEBUG) log("cache hit for " + key + ", providers=" + providers);
+        return entry;
+    }
+
+    /**
+     * Saves the metadata of a plugin, replacing whatever was cached for it before.
+     */
+    public void put(Entry entry) {
+        String key = getKey(entry.mPackageName, entry.mClassName);
+        SharedPreferences.Editor editor = mPrefs.edit();
+
+        // drop the resource package names of providers the plugin may no longer support
+        for (String name : mPrefs.getAll().keySet()) {
+            if (name.startsWith(key + KEY_RESOURCE_PACKAGE)) {
+                editor.remove(name);
+            }
+        }
+
+        editor.putString(key + KEY_SRC_PATH, entry.mSrcPath);
+        editor.putLong(key + KEY_LAST_MODIFIED, entry.mLastModified);
+        editor.putString(key + KEY_PROVIDERS, TextUtils.join(PROVIDER_SEPARATOR, entry.mProviders));
+        for (String provider : entry.mProviders) {
+            String resPackage = entry.mResourcePackageNames.get(provider);
+            if (resPackage != null) {
+                editor.putString(key + KEY_RESOURCE_PACKAGE + provider, resPackage);
+            }
+        }
+
+        if (!editor.commit()) {
+            Log.w(TAG, "[PluginMetadataCache] failed to save the metadata of " + key);
+        }
+    }
+
+    private static String getKey(String packageName, String className) {
+        return packageName + '/' + className;
+    }
+
+    static long getLastModified(String srcPath) {
+        return new File(srcPath).lastModified();
+    }
+
+    private void log(String msg) {
+        Log.d(TAG, "[PluginMetadataCache] " + msg);
+    }
+}
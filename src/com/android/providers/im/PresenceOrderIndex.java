@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Im;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * An in-memory ordering of the contacts of each account, online first, for the roster.
+ *
+ * The contacts of an account are kept in one sorted list per presence mode, each sorted by
+ * display name, and the roster is the lists read from the most available mode down. A
+ * presence change moves the contact from one list to the other, so the rest of the roster
+ * keeps its order and the position of a contact only depends on its mode and its name.
+ * An account is read from the database the first time its roster is asked for. Changes that
+ * can't be followed one contact at a time drop the account, and it's read again when it's
+ * next needed. The database is read outside of the lock of the index, so a change applied
+ * while an account is read keeps it from being cached, and the next query reads it again.
+ */
+final class PresenceOrderIndex {
+    static final String[] COLUMNS = new String[] {
+            Im.Contacts._ID,
+            Im.Contacts.USERNAME,
+            Im.Contacts.NICKNAME,
+            Im.Contacts.PRESENCE_STATUS,
+    };
+
+    private static final String LOAD_QUERY =
+            "SELECT contacts._id, contacts.username, contacts.nickname, presence.mode"
+            + " FROM contacts LEFT OUTER JOIN presence ON contacts._id=presence.contact_id"
+            + " WHERE contacts.account=? AND (contacts.type IS NULL OR contacts.type!="
+            + Im.Contacts.TYPE_BLOCKED + ")";
+
+    // one list per presence mode, plus the first one for contacts without a presence
+    private static final int NUM_BUCKETS = Im.Presence.AVAILABLE + 2;
+
+    private static final class Contact {
+        final long mId;
+        final String mUsername;
+        final String mNickname;
+        final String mSortKey;
+        Integer mMode;
+
+        Contact(long id, String username, String nickname, Integer mode) {
+            mId = id;
+            mUsername = username;
+            mNickname = nickname;
+            mSortKey = (TextUtils.isEmpty(nickname) ? (username == null ? "" : username)
+                    : nickname).toLowerCase(Locale.US);
+            mMode = mode;
+        }
+    }
+
+    // the order of the contacts within a mode
+    private static final Comparator<Contact> DISPLAY_ORDER = new Comparator<Contact>() {
+        public int compare(Contact a, Contact b) {
+            int result = a.mSortKey.compareTo(b.mSortKey);
+            if (result == 0 && a.mId != b.mId) {
+                result = a.mId < b.mId ? -1 : 1;
+            }
+            return result;
+        }
+    };
+
+    private static final class AccountOrder {
+        final HashMap<Long, Contact> mContacts = new HashMap<Long, Contact>();
+        final ArrayList<ArrayList<Contact>> mBuckets =
+                new ArrayList<ArrayList<Contact>>(NUM_BUCKETS);
+
+        AccountOrder() {
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                mBuckets.add(new ArrayList<Contact>());
+            }
+        }
+    }
+
+    private final HashMap<Long, AccountOrder> mAccounts = new HashMap<Long, AccountOrder>();
+    // counts the changes, to tell whether one was applied while an account was being read
+    private int mGeneration;
+
+    /**
+     * Adds a new contact to the roster of its account, if the account has been read.
+     *
+     * @param mode the presence mode of the contact, or null if it has no presence.
+     */
+    synchronized void addContact(long account, long id, String username, String nickname,
+            int type, Integer mode) {
+        mGeneration++;
+        AccountOrder order = mAccounts.get(account);
+        if (order != null && type != Im.Contacts.TYPE_BLOCKED) {
+            add(order, new Contact(id, username, nickname, mode));
+        }
+    }
+
+    /**
+     * Removes a deleted contact from the roster.
+     */
+    synchronized void removeContact(long id) {
+        mGeneration++;
+        for (AccountOrder order : mAccounts.values()) {
+            Contact contact = order.mContacts.get(id);
+            if (contact != null) {
+                remove(order, contact);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves a contact to the list of its new presence mode.
+     *
+     * @param mode the new mode, or null if the contact no longer has a presence.
+     */
+    synchronized void setPresence(long id, Integer mode) {
+        mGeneration++;
+        for (AccountOrder order : mAccounts.values()) {
+            Contact contact = order.mContacts.get(id);
+            if (contact != null) {
+                move(order, contact, mode);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the roster of an account, after its contacts or their presence changed in a
+     * way the index can't follow.
+     */
+    synchronized void invalidate(long account) {
+        mGeneration++;
+        mAccounts.remove(account);
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mAccounts.clear();
+    }
+
+    /**
+     * Lists the contacts of an account, the most available first, then by display name.
+     *
+     * @return a cursor with the {@link #COLUMNS} of the contacts, in roster order.
+     */
+    Cursor query(SQLiteDatabase db, long account) {
+        int generation;
+        synchronized (this) {
+            AccountOrder order = mAccounts.get(account);
+            if (order != null) {
+                return toCursor(order);
+            }
+            generation = mGeneration;
+        }
+
+        AccountOrder order = load(db, account);
+        synchronized (this) {
+            // an account read while it was being changed is used for this query only
+            if (generation == mGeneration) {
+                mAccounts.put(account, order);
+            }
+        }
+        return toCursor(order);
+    }
+
+    private static Cursor toCursor(AccountOrder order) {
+        MatrixCursor c = new MatrixCursor(COLUMNS, order.mContacts.size());
+        for (int i = NUM_BUCKETS - 1; i >= 0; i--) {
+            for (Contact contact : order.mBuckets.get(i)) {
+                c.addRow(new Object[] {
+                        contact.mId, contact.mUsername, contact.mNickname, contact.mMode });
+            }
+        }
+        return c;
+    }
+
+    private static AccountOrder load(SQLiteDatabase db, long account) {
+        AccountOrder order = new AccountOrder();
+        Cursor c = db.rawQuery(LOAD_QUERY, new String[] { Long.toString(account) });
+        try {
+            while (c.moveToNext()) {
+                Contact contact = new Contact(c.getLong(0), c.getString(1), c.getString(2),
+                        c.isNull(3) ? null : c.getInt(3));
+                order.mContacts.put(contact.mId, contact);
+                order.mBuckets.get(bucketOf(contact.mMode)).add(contact);
+            }
+        } finally {
+            c.close();
+        }
+        // sorted once, then kept sorted as the contacts move
+        for (ArrayList<Contact> bucket : order.mBuckets) {
+            Collections.sort(bucket, DISPLAY_ORDER);
+        }
+        return order;
+    }
+
+    private static void add(AccountOrder order, Contact contact) {
+        Contact old = order.mContacts.get(contact.mId);
+        if (old != null) {
+            remove(order, old);
+        }
+        order.mContacts.put(contact.mId, contact);
+        insert(order.mBuckets.get(bucketOf(contact.mMode)), contact);
+    }
+
+    private static void remove(AccountOrder order, Contact contact) {
+        order.mContacts.remove(contact.mId);
+        delete(order.mBuckets.get(bucketOf(contact.mMode)), contact);
+    }
+
+    private static void move(AccountOrder order, Contact contact, Integer mode) {
+        int from = bucketOf(contact.mMode);
+        int to = bucketOf(mode);
+        contact.mMode = mode;
+        if (from != to) {
+            delete(order.mBuckets.get(from), contact);
+            insert(order.mBuckets.get(to), contact);
+        }
+    }
+
+    private static void insert(ArrayList<Contact> bucket, Contact contact) {
+        int index = Collections.binarySearch(bucket, contact, DISPLAY_ORDER);
+        if (index < 0) {
+            bucket.add(~index, contact);
+        }
+    }
+
+    private static void delete(ArrayList<Contact> bucket, Contact contact) {
+        int index = Collections.binarySearch(bucket, contact, DISPLAY_ORDER);
+        if (index >= 0) {
+            bucket.remove(index);
+        }
+    }
+
+    // modes outside of the known range are listed with the contacts without a presence
+    private static int bucketOf(Integer mode) {
+        if (mode == null || mode < 0 || mode > Im.Presence.AVAILABLE) {
+            return 0;
+        }
+        return mode + 1;
+    }
+}
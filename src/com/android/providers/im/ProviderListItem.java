@@ -114,7 +114,8 @@ public class ProviderListItem extends LinearLayout {
             providerName.setText(providerDisplayName);
 
             long accountId = cursor.getLong(mActiveAccountIdColumn);
-            int connectionStatus = cursor.getInt(mAccountConnectionStatusColumn);
+            int connectionStatus = mActivity.getConnectionStatus(accountId,
+                    cursor.getInt(mAccountConnectionStatusColumn));
 
             String secondRowText;
 
@@ -126,7 +127,7 @@ public class ProviderListItem extends LinearLayout {
                     break;
 
                 case Im.ConnectionStatus.ONLINE:
-                    int presenceIconId = getPresenceIconId(cursor);
+                    int presenceIconId = getPresenceIconId(cursor, accountId);
                     statusIcon.setImageDrawable(
                             brandingRes.getDrawable(presenceIconId));
                     statusIcon.setVisibility(View.VISIBLE);
@@ -183,8 +184,9 @@ public class ProviderListItem extends LinearLayout {
         }
     }
 
-    private int getPresenceIconId(Cursor cursor) {
-        int presenceStatus = cursor.getInt(mAccountPresenceStatusColumn);
+    private int getPresenceIconId(Cursor cursor, long accountId) {
+        int presenceStatus = mActivity.getPresenceStatus(accountId,
+                cursor.getInt(mAccountPresenceStatusColumn));
 
         if (LOCAL_DEBUG) log("getPresenceIconId: presenceStatus=" + presenceStatus);
         
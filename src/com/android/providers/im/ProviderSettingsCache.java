@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Im;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A read-through cache of the providerSettings table. All the settings of a provider are
+ * read in one query the first time one of them is asked for, and dropped whenever a row
+ * of that provider is written.
+ *
+ * The settings are dropped once the write is committed, and read outside of the lock of
+ * the cache, so a query waiting for the database never holds up a writer.
+ */
+final class ProviderSettingsCache {
+    private static final String TABLE_PROVIDER_SETTINGS = "providerSettings";
+
+    private static final String[] SETTING_PROJECTION = new String[] {
+            Im.ProviderSettings.NAME,       // 0
+            Im.ProviderSettings.VALUE,      // 1
+    };
+
+    private final HashMap<Long, HashMap<String, String>> mSettings =
+            new HashMap<Long, HashMap<String, String>>();
+    // counts the invalidations, to tell whether one happened while settings were being read
+    private int mGeneration;
+
+    /**
+     * Reads the settings of a provider from memory, as the providerSettings table would
+     * return them.
+     *
+     * @param name the name of the setting, or null for all the settings of the provider.
+     * @return a cursor with the columns of the projection, or null if the projection has a
+     *         column the cache doesn't keep.
+     */
+    Cursor query(SQLiteDatabase db, long provider, String name,
+            String[] projection) {
+        if (projection == null) {
+            return null;
+        }
+        for (String column : projection) {
+            if (!Im.ProviderSettings.PROVIDER.equals(column)
+                    && !Im.ProviderSettings.NAME.equals(column)
+                    && !Im.ProviderSettings.VALUE.equals(column)) {
+                return null;
+            }
+        }
+
+        HashMap<String, String> settings = getSettings(db, provider);
+        MatrixCursor c = new MatrixCursor(projection, name == null ? settings.size() : 1);
+        if (name == null) {
+            for (Map.Entry<String, String> setting : settings.entrySet()) {
+                addRow(c, projection, provider, setting.getKey(), setting.getValue());
+            }
+        } else if (settings.containsKey(name)) {
+            addRow(c, projection, provider, name, settings.get(name));
+        }
+        return c;
+    }
+
+    synchronized void invalidate(long provider) {
+        mGeneration++;
+        mSettings.remove(provider);
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mSettings.clear();
+    }
+
+    // the settings are never changed once read, only replaced, so they can be used outside
+    // of the lock
+    private HashMap<String, String> getSettings(SQLiteDatabase db, long provider) {
+        int generation;
+        synchronized (this) {
+            HashMap<String, String> settings = mSettings.get(provider);
+            if (settings != null) {
+                return settings;
+            }
+            generation = mGeneration;
+        }
+
+        HashMap<String, String> settings = new HashMap<String, String>();
+        Cursor c = db.query(TABLE_PROVIDER_SETTINGS, SETTING_PROJECTION,
+                Im.ProviderSettings.PROVIDER + "=" + provider, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                settings.put(c.getString(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+
+        synchronized (this) {
+            // settings read while they were being written are used for this query only
+            if (generation == mGeneration) {
+                mSettings.put(provider, settings);
+            }
+        }
+        return settings;
+    }
+
+    private static void addRow(MatrixCursor c, String[] projection, long provider,
+            String name, String value) {
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i];
+            if (Im.ProviderSettings.PROVIDER.equals(column)) {
+                row[i] = provider;
+            } else if (Im.ProviderSettings.NAME.equals(column)) {
+                row[i] = name;
+            } else {
+                row[i] = value;
+            }
+        }
+        c.addRow(row);
+    }
+}
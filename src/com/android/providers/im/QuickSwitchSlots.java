@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps track of which chats occupy the quick switch slots.
+ *
+ * The chat UI provides slots (0, 9, .., 1) for the first 10 chats. This allows you to
+ * quickly switch between these chats by chording menu+#. We number from the right end of
+ * the number row and move leftward to make an easier two-hand chord with the menu button
+ * on the left side of the keyboard.
+ *
+ * The chats table lives in the in-memory database, so it's only ever written by
+ * {@link ImProvider}, and this state can be kept next to it instead of being recomputed
+ * from the table for each chat. The slot occupancy is a bitmask, and the chats without
+ * a slot are kept ordered by their last message date, so both finding a free slot and
+ * picking the chat to backfill a freed slot take constant time.
+ *
+ * The state is changed as the chats are written, inside the provider's transaction. If the
+ * transaction is rolled back, the state is dropped with {@link #invalidate} and read again
+ * from the table the next time it's needed.
+ */
+final class QuickSwitchSlots {
+    static final int NUM_SLOTS = 10;
+
+    //  The map is here because numbers go from 0-9, but we want to assign slots in
+    //  0, 9, 8, ..., 1 order to match the right-to-left reading of the number row
+    //  on the keyboard. The shortcuts represent actual keyboard number row keys, and not
+    //  ordinals, so the map translates between the two. It's its own inverse.
+    private static final int[] MAP = new int[] { 0, 9, 8, 7, 6, 5, 4, 3, 2, 1 };
+
+    private static final int ALL_SLOTS = (1 << NUM_SLOTS) - 1;
+
+    private static final class Chat {
+        final long mId;
+        final long mContactId;
+        int mSlot;
+        long mLastMessageDate;
+
+        Chat(long id, long contactId, int slot, long lastMessageDate) {
+            mId = id;
+            mContactId = contactId;
+            mSlot = slot;
+            mLastMessageDate = lastMessageDate;
+        }
+    }
+
+    // most recent first
+    private static final Comparator<Chat> RECENCY = new Comparator<Chat>() {
+        public int compare(Chat a, Chat b) {
+            if (a.mLastMessageDate != b.mLastMessageDate) {
+                return a.mLastMessageDate > b.mLastMessageDate ? -1 : 1;
+            }
+            if (a.mId != b.mId) {
+                return a.mId > b.mId ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    private final HashMap<Long, Chat> mChats = new HashMap<Long, Chat>();
+    private final HashMap<Long, Chat> mChatsByContact = new HashMap<Long, Chat>();
+    private final TreeSet<Chat> mUnslottedChats = new TreeSet<Chat>(RECENCY);
+
+    // bit i is set if the slot MAP[i] is in use
+    private int mOccupied;
+
+    // true if the state no longer matches the table and has to be read again
+    private boolean mInvalid;
+
+    /**
+     * Gets the slot for a new chat with a contact, without taking it. An existing chat with
+     * the contact keeps its slot, since the new chat replaces it.
+     *
+     * @return the slot, or -1 if all the slots are in use.
+     */
+    synchronized int nextSlotForContact(long contactId) {
+        Chat old = mChatsByContact.get(contactId);
+        if (old != null && old.mSlot != -1) {
+            // keep the replaced chat on the same key
+            return old.mSlot;
+        }
+        return findEmptySlot();
+    }
+
+    /**
+     * Records a new chat, once its row is written. Any existing chat with the contact is
+     * forgotten, since the new chat replaces it.
+     *
+     * @param slot the slot returned by {@link #nextSlotForContact}.
+     */
+    synchronized void addChat(long chatId, long contactId, int slot, long lastMessageDate) {
+        Chat old = mChatsByContact.get(contactId);
+        if (old != null) {
+            remove(old);
+        }
+        Chat chat = new Chat(chatId, contactId, slot, lastMessageDate);
+        mChats.put(chatId, chat);
+        mChatsByContact.put(contactId, chat);
+        if (slot == -1) {
+            mUnslottedChats.add(chat);
+        } else {
+            mOccupied |= (1 << MAP[slot]);
+        }
+    }
+
+    /**
+     * Forgets a deleted chat, freeing its slot.
+     */
+    synchronized void removeChat(long chatId) {
+        Chat chat = mChats.get(chatId);
+        if (chat != null) {
+            remove(chat);
+        }
+    }
+
+    /**
+     * Forgets the chat with a contact, freeing its slot.
+     */
+    synchronized void removeChatForContact(long contactId) {
+        Chat chat = mChatsByContact.get(contactId);
+        if (chat != null) {
+            remove(chat);
+        }
+    }
+
+    /**
+     * Gets the id of the chat with a contact.
+     *
+     * @return the chat id, or -1 if there isn't a chat with the contact.
+     */
+    synchronized long getChatIdForContact(long contactId) {
+        Chat chat = mChatsByContact.get(contactId);
+        return chat == null ? -1 : chat.mId;
+    }
+
+    synchronized boolean hasUnslottedChats() {
+        return !mUnslottedChats.isEmpty();
+    }
+
+    /**
+     * Records a change of the last message date of a chat, which decides which chat
+     * gets the next free slot.
+     */
+    synchronized void setLastMessageDate(long chatId, long lastMessageDate) {
+        Chat chat = mChats.get(chatId);
+        if (chat == null || chat.mLastMessageDate == lastMessageDate) {
+            return;
+        }
+        if (chat.mSlot == -1) {
+            mUnslottedChats.remove(chat);
+            chat.mLastMessageDate = lastMessageDate;
+            mUnslottedChats.add(chat);
+        } else {
+            chat.mLastMessageDate = lastMessageDate;
+        }
+    }
+
+    /**
+     * If there is a free slot and a chat without a slot, gives the free slot to the most
+     * recent chat without one.
+     *
+     * @return the id of the chat that got a slot, or -1 if no chat got one. Use
+     *         {@link #getSlot} to find out which slot.
+     */
+    synchronized long backfill() {
+        if (mUnslottedChats.isEmpty()) {
+            return -1;
+        }
+        int slot = findEmptySlot();
+        if (slot == -1) {
+            return -1;
+        }
+
+        Chat chat = mUnslottedChats.first();
+        mUnslottedChats.remove(chat);
+        chat.mSlot = slot;
+        mOccupied |= (1 << MAP[slot]);
+        return chat.mId;
+    }
+
+    synchronized int getSlot(long chatId) {
+        Chat chat = mChats.get(chatId);
+        return chat == null ? -1 : chat.mSlot;
+    }
+
+    /**
+     * Forgets all the chats, when the chats table is created empty.
+     */
+    synchronized void clear() {
+        mChats.clear();
+        mChatsByContact.clear();
+        mUnslottedChats.clear();
+        mOccupied = 0;
+        mInvalid = false;
+    }
+
+    /**
+     * Drops the state after the chats written since it was last right were rolled back.
+     */
+    synchronized void invalidate() {
+        clear();
+        mInvalid = true;
+    }
+
+    /**
+     * Reads the chats from the table again if the state was dropped. Must be called inside
+     * the transaction that's about to use the slots.
+     */
+    synchronized void loadIfInvalid(SQLiteDatabase db) {
+        if (!mInvalid) {
+            return;
+        }
+        clear();
+        Cursor c = db.query("chats",
+                new String[] { "_id", "contact_id", "shortcut", "last_message_date" },
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                addChat(c.getLong(0), c.getLong(1), c.isNull(2) ? -1 : c.getInt(2),
+                        c.isNull(3) ? 0 : c.getLong(3));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private void remove(Chat chat) {
+        mChats.remove(chat.mId);
+        if (mChatsByContact.get(chat.mContactId) == chat) {
+            mChatsByContact.remove(chat.mContactId);
+        }
+        if (chat.mSlot == -1) {
+            mUnslottedChats.remove(chat);
+        } else {
+            mOccupied &= ~(1 << MAP[chat.mSlot]);
+        }
+    }
+
+    private int findEmptySlot() {
+        int free = ~mOccupied & ALL_SLOTS;
+        if (free == 0) {
+            return -1;
+        }
+        return MAP[Integer.numberOfTrailingZeros(free)];
+    }
+}
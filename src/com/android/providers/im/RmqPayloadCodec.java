@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.database.Cursor;
+import android.provider.Im;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compact encoding of the payloads of queued RMQ messages, stored in the payload
+ * BLOB column of outgoingRmqMessages instead of the data TEXT column.
+ *
+ * An encoded payload is a flags byte, the length of the original payload as a base 128
+ * varint, then the payload itself, deflated if {@link #FLAG_DEFLATED} is set. Payloads are
+ * only deflated when they're long enough and deflating actually makes them smaller.
+ *
+ * The clients of the outgoingRmqMessages URI don't need to know the encoding: the provider
+ * decodes the payloads back into the data column when they query it.
+ */
+public final class RmqPayloadCodec {
+    /**
+     * The name of the column holding the encoded payloads.
+     */
+    public static final String PAYLOAD = "payload";
+
+    public static final int FLAG_DEFLATED = 0x01;
+
+    private static final int DEFLATE_THRESHOLD = 128;
+
+    /**
+     * Receives the payloads of the queued messages, in rmq id order.
+     */
+    public interface Receiver {
+        /**
+         * @param payload the decoded payload. Only valid until this method returns.
+         * @param length the length of the decoded payload.
+         */
+        void onMessage(long rmqId, int type, long timestamp, InputStream payload, int length)
+                throws IOException;
+    }
+
+    private RmqPayloadCodec() {
+    }
+
+    public static byte[] encode(String data) {
+        try {
+            return encode(data.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            // UTF-8 is always supported
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public static byte[] encode(byte[] data) {
+        int flags = 0;
+        byte[] body = data;
+        if (data.length >= DEFLATE_THRESHOLD) {
+            byte[] deflated = deflate(data);
+            if (deflated.length < data.length) {
+                body = deflated;
+                flags |= FLAG_DEFLATED;
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 6);
+        out.write(flags);
+        for (int n = data.length; ; n >>>= 7) {
+            if ((n & ~0x7f) == 0) {
+                out.write(n);
+                break;
+            }
+            out.write((n & 0x7f) | 0x80);
+        }
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Gets the length of the payload before it was encoded.
+     */
+    public static int getLength(byte[] payload) throws IOException {
+        int length = 0;
+        for (int i = 1, shift = 0; i < payload.length && shift < 32; i++, shift += 7) {
+            int b = payload[i];
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return length;
+            }
+        }
+        throw new IOException("malformed payload");
+    }
+
+    /**
+     * Opens a stream over the decoded payload, inflating it as it's read.
+     */
+    public static InputStream openStream(byte[] payload) throws IOException {
+        int offset = 1;
+        while (offset < payload.length && (payload[offset] & 0x80) != 0) {
+            offset++;
+        }
+        offset++;
+        if (offset > payload.length) {
+            throw new IOException("malformed payload");
+        }
+
+        InputStream in = new ByteArrayInputStream(payload, offset, payload.length - offset);
+        if ((payload[0] & FLAG_DEFLATED) != 0) {
+            in = new InflaterInputStream(in);
+        }
+        return in;
+    }
+
+    /**
+     * Decodes a payload that was encoded from a string.
+     */
+    public static String decodeToString(byte[] payload) throws IOException {
+        byte[] data = new byte[getLength(payload)];
+        InputStream in = openStream(payload);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int n = in.read(data, offset, data.length - offset);
+                if (n < 0) {
+                    throw new IOException("truncated payload");
+                }
+                offset += n;
+            }
+        } finally {
+            in.close();
+        }
+        return new String(data, "UTF-8");
+    }
+
+    /**
+     * Hands the messages of an outgoingRmqMessages cursor to a receiver, one at a time.
+     * Rows queued before the compact encoding was used are read from the data column.
+     *
+     * @return the number of messages handed to the receiver.
+     */
+    public static int replay(Cursor c, Receiver receiver) throws IOException {
+        int rmqIdColumn = c.getColumnIndexOrThrow(Im.OutgoingRmq.RMQ_ID);
+        int typeColumn = c.getColumnIndexOrThrow(Im.OutgoingRmq.PROTOBUF_TAG);
+        int timestampColumn = c.getColumnIndexOrThrow(Im.OutgoingRmq.TIMESTAMP);
+        int payloadColumn = c.getColumnIndexOrThrow(PAYLOAD);
+        int dataColumn = c.getColumnIndexOrThrow(Im.OutgoingRmq.DATA);
+
+        int count = 0;
+        c.moveToPosition(-1);
+        while (c.moveToNext()) {
+            byte[] payload = c.getBlob(payloadColumn);
+            InputStream in;
+            int length;
+            if (payload != null) {
+                in = openStream(payload);
+                length = getLength(payload);
+            } else {
+                String data = c.getString(dataColumn);
+                byte[] bytes = data == null ? new byte[0] : data.getBytes("UTF-8");
+                in = new ByteArrayInputStream(bytes);
+                length = bytes.length;
+            }
+
+            try {
+                receiver.onMessage(c.getLong(rmqIdColumn), c.getInt(typeColumn),
+                        c.getLong(timestampColumn), in, length);
+            } finally {
+                in.close();
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
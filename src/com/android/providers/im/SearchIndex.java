@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Full-text index of the message bodies and the contact names.
+ *
+ * The index is made of FTS3 tables keyed by the row ids of the messages, groupMessages
+ * and contacts tables. The tables are kept up to date by temporary triggers, which are
+ * the only triggers allowed to reach from one attached database into another.
+ */
+final class SearchIndex {
+    private static final String LOG_TAG = "imProvider";
+
+    /**
+     * The kinds of search hits, in the "type" column. Higher types rank first.
+     */
+    static final int TYPE_MESSAGE = 0;
+    static final int TYPE_GROUP_MESSAGE = 1;
+    static final int TYPE_CONTACT = 2;
+
+    private static final String MESSAGES_FTS = "messagesFts";
+    private static final String GROUP_MESSAGES_FTS = "groupMessagesFts";
+    private static final String CONTACTS_FTS = "contactsFts";
+
+    private boolean mEnabled;
+
+    /**
+     * Creates the index tables and the triggers that maintain them. Must be called each
+     * time the database is opened, after the indexed tables were created.
+     *
+     * @param transientDbName the name of the in-memory database, followed by a dot.
+     * @param messagesDbName the name of the database that holds the messages table,
+     *        followed by a dot.
+     */
+    void create(SQLiteDatabase db, String transientDbName, String messagesDbName) {
+        try {
+            // the messages may be kept on disk, in which case so is their index, and it
+            // only needs to be filled when it's new
+            boolean populateMessages = !tableExists(db, messagesDbName, MESSAGES_FTS);
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + messagesDbName + MESSAGES_FTS
+                    + " USING fts3(body);");
+            if (populateMessages) {
+                db.execSQL("INSERT INTO " + messagesDbName + MESSAGES_FTS + " (docid, body)"
+                        + " SELECT _id, body FROM " + messagesDbName + "messages;");
+            }
+
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + transientDbName
+                    + GROUP_MESSAGES_FTS + " USING fts3(body);");
+
+            // the contacts are kept on disk, but their index isn't
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + transientDbName + CONTACTS_FTS
+                    + " USING fts3(username, nickname);");
+            db.execSQL("INSERT INTO " + transientDbName + CONTACTS_FTS
+                    + " (docid, username, nickname) SELECT _id, username, nickname FROM contacts;");
+
+            createTriggers(db, "messages", MESSAGES_FTS, "body");
+            createTriggers(db, "groupMessages", GROUP_MESSAGES_FTS, "body");
+            createTriggers(db, "contacts", CONTACTS_FTS, "username", "nickname");
+            mEnabled = true;
+        } catch (SQLException ex) {
+            // the search is an extra, don't let it keep the provider from working
+            Log.e(LOG_TAG, "failed to create the search index", ex);
+            mEnabled = false;
+        }
+    }
+
+    private static void createTriggers(SQLiteDatabase db, String table, String ftsTable,
+            String... columns) {
+        String columnList = TextUtils.join(",", columns);
+        String newValues = "NEW." + TextUtils.join(",NEW.", columns);
+        String insert = "INSERT INTO " + ftsTable + " (docid," + columnList + ") VALUES"
+                + " (NEW._id," + newValues + ");";
+        String delete = "DELETE FROM " + ftsTable + " WHERE docid=OLD._id;";
+
+        db.execSQL("CREATE TEMP TRIGGER IF NOT EXISTS " + ftsTable + "_insert AFTER INSERT ON "
+                + table + " BEGIN " + insert + " END;");
+        db.execSQL("CREATE TEMP TRIGGER IF NOT EXISTS " + ftsTable + "_update AFTER UPDATE OF "
+                + columnList + " ON " + table + " BEGIN " + delete + insert + " END;");
+        db.execSQL("CREATE TEMP TRIGGER IF NOT EXISTS " + ftsTable + "_delete AFTER DELETE ON "
+                + table + " BEGIN " + delete + " END;");
+    }
+
+    private static boolean tableExists(SQLiteDatabase db, String dbName, String table) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + dbName
+                + "sqlite_master WHERE type='table' AND name=?", new String[] { table }) > 0;
+    }
+
+    /**
+     * Searches the messages and the contacts. Every word of the query matches the words
+     * starting with it. Contacts come first, then messages, most recent first.
+     *
+     * @param account the account to search, or 0 for all the accounts.
+     * @return a cursor with the columns type, _id, conversation (the id of the contact or
+     *         group the hit belongs to), text and date, or null if there is nothing to
+     *         search for.
+     */
+    Cursor query(SQLiteDatabase db, String query, long account, int limit) {
+        if (!mEnabled) {
+            Log.w(LOG_TAG, "search index not available");
+            return null;
+        }
+        String match = buildMatch(query);
+        if (match == null) {
+            return null;
+        }
+
+        String accountClause = account > 0 ? " AND contacts.account=" + account : "";
+        String sql =
+                "SELECT " + TYPE_CONTACT + " AS type, contacts._id AS _id,"
+                + " contacts._id AS conversation,"
+                + " IFNULL(contacts.nickname, contacts.username) AS text, NULL AS date"
+                + " FROM " + CONTACTS_FTS + " JOIN contacts ON (contacts._id = "
+                + CONTACTS_FTS + ".docid)"
+                + " WHERE " + CONTACTS_FTS + " MATCH ?" + accountClause
+                + " UNION ALL"
+                + " SELECT " + TYPE_GROUP_MESSAGE + ", groupMessages._id, groupMessages.groupId,"
+                + " groupMessages.body, groupMessages.date"
+                + " FROM " + GROUP_MESSAGES_FTS + " JOIN groupMessages ON (groupMessages._id = "
+                + GROUP_MESSAGES_FTS + ".docid)"
+                + " LEFT OUTER JOIN contacts ON (contacts._id = groupMessages.groupId)"
+                + " WHERE " + GROUP_MESSAGES_FTS + " MATCH ?" + accountClause
+                + " UNION ALL"
+                + " SELECT " + TYPE_MESSAGE + ", messages._id, contacts._id,"
+                + " messages.body, messages.date"
+                + " FROM " + MESSAGES_FTS + " JOIN messages ON (messages._id = "
+                + MESSAGES_FTS + ".docid)"
+                + " LEFT OUTER JOIN contacts ON (contacts.username = messages.contact"
+                + " AND contacts.account = messages.account)"
+                + " WHERE " + MESSAGES_FTS + " MATCH ?"
+                + (account > 0 ? " AND messages.account=" + account : "")
+                + " ORDER BY type DESC, date DESC LIMIT " + limit;
+
+        return db.rawQuery(sql, new String[] { match, match, match });
+    }
+
+    /**
+     * Turns the words of a user query into an FTS3 prefix query, dropping the characters
+     * that have a meaning in the FTS3 query syntax.
+     */
+    static String buildMatch(String query) {
+        if (query == null) {
+            return null;
+        }
+        ArrayList<String> terms = new ArrayList<String>();
+        StringBuilder term = new StringBuilder();
+        final int N = query.length();
+        for (int i = 0; i <= N; i++) {
+            char c = (i < N) ? query.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                term.append(c);
+            } else if (term.length() > 0) {
+                terms.add(term.append('*').toString());
+                term.setLength(0);
+            }
+        }
+        if (terms.isEmpty()) {
+            return null;
+        }
+        return TextUtils.join(" ", terms);
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Im;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The session cookies of the accounts. The sessionCookies table stays the place they're
+ * written to, and the cookies of each account are also kept in memory once read, so the
+ * cookies of an account can be read without a query.
+ *
+ * If the cookies are persistent, they're also written to a private file after each
+ * transaction that changed them commits, and put back in the table when the database is
+ * opened, so a restarted process can resume the sessions without signing in again. The
+ * file is not encrypted: there's nowhere to keep a key that the application couldn't read
+ * back from its own files, so it's only protected by the file permissions, like the
+ * database that holds the passwords of the accounts.
+ *
+ * The changes to the memory copy are applied once the transaction that made them commits,
+ * and the table is never read under the lock of the store, so a query waiting for the
+ * database never holds up a writer.
+ */
+final class SessionCookieStore {
+    private static final String LOG_TAG = "imProvider";
+
+    private static final String TABLE_SESSION_COOKIES = "sessionCookies";
+
+    private static final String COOKIES_FILE = "session_cookies";
+    // left behind by the encrypted files of version 1
+    private static final String OLD_KEY_FILE = "session_cookies.key";
+    private static final int FILE_VERSION = 2;
+
+    static final String[] COLUMNS = new String[] {
+            Im.SessionCookies._ID,
+            Im.SessionCookies.PROVIDER,
+            Im.SessionCookies.ACCOUNT,
+            Im.SessionCookies.NAME,
+            Im.SessionCookies.VALUE,
+    };
+
+    private static final String[] COOKIE_PROJECTION = new String[] {
+            Im.SessionCookies._ID,          // 0
+            Im.SessionCookies.PROVIDER,     // 1
+            Im.SessionCookies.ACCOUNT,      // 2
+            Im.SessionCookies.NAME,         // 3
+            Im.SessionCookies.VALUE,        // 4
+    };
+
+    private static final class Cookie {
+        final long mId;
+        final long mProvider;
+        final String mName;
+        final String mValue;
+
+        Cookie(long id, long provider, String name, String value) {
+            mId = id;
+            mProvider = provider;
+            mName = name;
+            mValue = value;
+        }
+    }
+
+    private final Context mContext;
+    private final boolean mPersistent;
+    private final HashMap<Long, ArrayList<Cookie>> mCookies =
+            new HashMap<Long, ArrayList<Cookie>>();
+    // counts the changes, to tell whether one was applied while an account was being read
+    private int mGeneration;
+    // true if the file is older than the table
+    private boolean mChanged;
+    // held while the file is written
+    private final Object mFileLock = new Object();
+
+    SessionCookieStore(Context context, boolean persistent) {
+        mContext = context;
+        mPersistent = persistent;
+    }
+
+    /**
+     * Creates the index of the table and, if the cookies are persistent, puts the saved
+     * cookies back in it. Called each time the table is created.
+     *
+     * @param dbName the name of the database that holds the table, followed by a dot.
+     */
+    void onTableCreated(SQLiteDatabase db, String dbName) {
+        synchronized (this) {
+            mGeneration++;
+            mCookies.clear();
+        }
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + dbName + "sessionCookiesAccountIndex ON "
+                + TABLE_SESSION_COOKIES + " (account);");
+        if (mPersistent) {
+            restore(db, dbName);
+        }
+    }
+
+    /**
+     * Gets the cookies of an account.
+     *
+     * @param projection the columns to return, null for all of the {@link #COLUMNS}.
+     * @return a cursor with the cookies, or null if the projection has a column that
+     *         isn't one of the {@link #COLUMNS}.
+     */
+    Cursor query(SQLiteDatabase db, long account, String[] projection) {
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = indexOf(projection[i]);
+            if (columns[i] < 0) {
+                return null;
+            }
+        }
+
+        int generation;
+        synchronized (this) {
+            ArrayList<Cookie> cookies = mCookies.get(account);
+            if (cookies != null) {
+                return toCursor(cookies, account, projection, columns);
+            }
+            generation = mGeneration;
+        }
+
+        ArrayList<Cookie> cookies = load(db, account);
+        synchronized (this) {
+            // cookies read while they were being written are used for this query only
+            if (generation == mGeneration) {
+                mCookies.put(account, cookies);
+            }
+        }
+        return toCursor(cookies, account, projection, columns);
+    }
+
+    /**
+     * Called once the insert of a cookie into the table is committed.
+     */
+    synchronized void onInserted(long id, ContentValues values) {
+        mGeneration++;
+        mChanged = true;
+        Long account = values.getAsLong(Im.SessionCookies.ACCOUNT);
+        if (account == null) {
+            return;
+        }
+        ArrayList<Cookie> cookies = mCookies.get(account);
+        if (cookies != null) {
+            Long provider = values.getAsLong(Im.SessionCookies.PROVIDER);
+            cookies.add(new Cookie(id, provider == null ? 0 : provider,
+                    values.getAsString(Im.SessionCookies.NAME),
+                    values.getAsString(Im.SessionCookies.VALUE)));
+        }
+    }
+
+    /**
+     * Replaces all the cookies of an account in the table. The caller is expected to hold
+     * a database transaction, so the old set is never seen without the new one, and to
+     * {@link #invalidate} the account once it commits.
+     *
+     * @return the number of cookies inserted.
+     */
+    static int replace(SQLiteDatabase db, long provider, long account,
+            ContentValues[] values) {
+        db.delete(TABLE_SESSION_COOKIES, Im.SessionCookies.ACCOUNT + "=" + account, null);
+
+        int count = 0;
+        ContentValues row = new ContentValues(4);
+        for (ContentValues cookie : values) {
+            row.put(Im.SessionCookies.PROVIDER, provider);
+            row.put(Im.SessionCookies.ACCOUNT, account);
+            row.put(Im.SessionCookies.NAME, cookie.getAsString(Im.SessionCookies.NAME));
+            row.put(Im.SessionCookies.VALUE, cookie.getAsString(Im.SessionCookies.VALUE));
+            if (db.insert(TABLE_SESSION_COOKIES, null, row) > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Forgets the cookies of an account, once changes made to them in the table directly
+     * are committed.
+     */
+    synchronized void invalidate(long account) {
+        mGeneration++;
+        mChanged = true;
+        mCookies.remove(account);
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mChanged = true;
+        mCookies.clear();
+    }
+
+    /**
+     * Writes the cookies to the file if they changed since it was last written. Called
+     * after a write transaction committed, outside of it.
+     */
+    void saveIfChanged(SQLiteDatabase db) {
+        if (!mPersistent) {
+            return;
+        }
+        synchronized (mFileLock) {
+            synchronized (this) {
+                if (!mChanged) {
+                    return;
+                }
+                mChanged = false;
+            }
+            save(db);
+        }
+    }
+
+    private static ArrayList<Cookie> load(SQLiteDatabase db, long account) {
+        ArrayList<Cookie> cookies = new ArrayList<Cookie>();
+        Cursor c = db.query(TABLE_SESSION_COOKIES, COOKIE_PROJECTION,
+                Im.SessionCookies.ACCOUNT + "=" + account, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                cookies.add(new Cookie(c.getLong(0), c.getLong(1), c.getString(3),
+                        c.getString(4)));
+            }
+        } finally {
+            c.close();
+        }
+        return cookies;
+    }
+
+    private static Cursor toCursor(ArrayList<Cookie> cookies, long account,
+            String[] projection, int[] columns) {
+        MatrixCursor c = new MatrixCursor(projection, cookies.size());
+        for (Cookie cookie : cookies) {
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                switch (columns[i]) {
+                    case 0: row[i] = cookie.mId; break;
+                    case 1: row[i] = cookie.mProvider; break;
+                    case 2: row[i] = account; break;
+                    case 3: row[i] = cookie.mName; break;
+                    default: row[i] = cookie.mValue; break;
+                }
+            }
+            c.addRow(row);
+        }
+        return c;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //  Persistence
+    //  The file holds a version, then the number of cookies and the provider, account,
+    //  name and value of each.
+    private void save(SQLiteDatabase db) {
+        Cursor c = db.query(TABLE_SESSION_COOKIES, COOKIE_PROJECTION, null, null,
+                null, null, null);
+        try {
+            if (c.getCount() == 0) {
+                mContext.deleteFile(COOKIES_FILE);
+                return;
+            }
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    mContext.openFileOutput(COOKIES_FILE, Context.MODE_PRIVATE)));
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeInt(c.getCount());
+                while (c.moveToNext()) {
+                    out.writeLong(c.getLong(1));
+                    out.writeLong(c.getLong(2));
+                    writeString(out, c.getString(3));
+                    writeString(out, c.getString(4));
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "failed to save the session cookies", ex);
+            mContext.deleteFile(COOKIES_FILE);
+        } finally {
+            c.close();
+        }
+    }
+
+    private void restore(SQLiteDatabase db, String dbName) {
+        mContext.deleteFile(OLD_KEY_FILE);
+
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    mContext.openFileInput(COOKIES_FILE)));
+        } catch (FileNotFoundException ex) {
+            return;
+        }
+
+        try {
+            // an empty or truncated file ends in an EOFException
+            if (in.readInt() != FILE_VERSION) {
+                throw new IOException("unknown session cookies version");
+            }
+            ContentValues row = new ContentValues(4);
+            for (int n = in.readInt(); n > 0; n--) {
+                row.put(Im.SessionCookies.PROVIDER, in.readLong());
+                row.put(Im.SessionCookies.ACCOUNT, in.readLong());
+                row.put(Im.SessionCookies.NAME, readString(in));
+                row.put(Im.SessionCookies.VALUE, readString(in));
+                db.insert(dbName + TABLE_SESSION_COOKIES, null, row);
+            }
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "failed to restore the session cookies", ex);
+            mContext.deleteFile(COOKIES_FILE);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.im.IImPlugin;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Queues the accounts of a batch sign in or sign out on the main thread, so the UI isn't
+ * held up for the whole batch.
+ *
+ * The plugins expect to be called on the main thread, so the calls stay there, but each
+ * account is handled in its own message, so the UI gets to run between two accounts
+ * instead of waiting for all of them. The plugins of the batch take turns, so one slow
+ * plugin doesn't hold back the accounts of the others. Progress is reported on the main
+ * thread too.
+ */
+public class SignInOutQueue {
+    private static final String TAG = "IM";
+
+    /**
+     * Receives the progress of a batch.
+     */
+    public interface Callback {
+        /**
+         * Called each time an account of the batch has been handled.
+         */
+        void onProgress(int done, int total);
+
+        /**
+         * Called once all the accounts of the batch have been handled.
+         */
+        void onFinished(int failed, int total);
+    }
+
+    private final Handler mHandler;
+    private final ArrayList<Batch> mBatches = new ArrayList<Batch>();
+
+    public SignInOutQueue() {
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Signs in the accounts.
+     *
+     * @param accounts the ids of the accounts to sign in, grouped by plugin.
+     * @param callback receives the progress, may be null.
+     */
+    public void signIn(HashMap<IImPlugin, ArrayList<Long>> accounts, Callback callback) {
+        execute(true, accounts, callback);
+    }
+
+    /**
+     * Signs out the accounts.
+     *
+     * @param accounts the ids of the accounts to sign out, grouped by plugin.
+     * @param callback receives the progress, may be null.
+     */
+    public void signOut(HashMap<IImPlugin, ArrayList<Long>> accounts, Callback callback) {
+        execute(false, accounts, callback);
+    }
+
+    /**
+     * Drops the accounts that haven't been handled yet. Must be called on the main thread.
+     */
+    public void shutdown() {
+        for (Batch batch : mBatches) {
+            mHandler.removeCallbacks(batch);
+        }
+        mBatches.clear();
+    }
+
+    private void execute(boolean signIn, HashMap<IImPlugin, ArrayList<Long>> accounts,
+            Callback callback) {
+        Batch batch = new Batch(signIn, accounts, callback);
+        if (batch.mTotal == 0) {
+            if (callback != null) {
+                callback.onFinished(0, 0);
+            }
+            return;
+        }
+        mBatches.add(batch);
+        mHandler.post(batch);
+    }
+
+    private final class Batch implements Runnable {
+        private final boolean mSignIn;
+        private final int mTotal;
+        private final Callback mCallback;
+        // the plugins that still have accounts to handle, in turn
+        private final LinkedList<PluginAccounts> mPlugins = new LinkedList<PluginAccounts>();
+        private int mDone;
+        private int mFailed;
+
+        Batch(boolean signIn, HashMap<IImPlugin, ArrayList<Long>> accounts, Callback callback) {
+            mSignIn = signIn;
+            mCallback = callback;
+            int total = 0;
+            for (Map.Entry<IImPlugin, ArrayList<Long>> entry : accounts.entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    mPlugins.add(new PluginAccounts(entry.getKey(), entry.getValue()));
+                    total += entry.getValue().size();
+                }
+            }
+            mTotal = total;
+        }
+
+        /**
+         * Handles the next account, then lets the main thread run before the one after.
+         */
+        public void run() {
+            PluginAccounts plugin = mPlugins.removeFirst();
+            long accountId = plugin.mAccountIds.get(plugin.mNext++);
+            if (plugin.mNext < plugin.mAccountIds.size()) {
+                mPlugins.addLast(plugin);
+            }
+
+            if (!handle(plugin.mPlugin, accountId)) {
+                mFailed++;
+            }
+            mDone++;
+
+            if (mCallback != null) {
+                mCallback.onProgress(mDone, mTotal);
+            }
+            if (mPlugins.isEmpty()) {
+                mBatches.remove(this);
+                if (mCallback != null) {
+                    mCallback.onFinished(mFailed, mTotal);
+                }
+            } else {
+                mHandler.post(this);
+            }
+        }
+
+        private boolean handle(IImPlugin plugin, long accountId) {
+            try {
+                if (mSignIn) {
+                    plugin.signIn(accountId);
+                } else {
+                    plugin.signOut(accountId);
+                }
+                return true;
+            } catch (RemoteException ex) {
+                Log.e(TAG, (mSignIn ? "signIn" : "signOut") + " failed for account "
+                        + accountId, ex);
+            } catch (RuntimeException ex) {
+                Log.e(TAG, (mSignIn ? "signIn" : "signOut") + " failed for account "
+                        + accountId, ex);
+            }
+            return false;
+        }
+    }
+
+    private static final class PluginAccounts {
+        final IImPlugin mPlugin;
+        final ArrayList<Long> mAccountIds;
+        int mNext;
+
+        PluginAccounts(IImPlugin plugin, ArrayList<Long> accountIds) {
+            mPlugin = plugin;
+            mAccountIds = accountIds;
+        }
+    }
+}
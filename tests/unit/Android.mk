@@ -0,0 +1,17 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+# We only want this apk build for tests.
+LOCAL_MODULE_TAGS := tests
+
+# Include all test java files.
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_JAVA_LIBRARIES := android.test.runner
+LOCAL_PACKAGE_NAME := ImProviderTests
+
+# The tests use the package private classes of the provider, so they run in its process.
+LOCAL_INSTRUMENTATION_FOR := ImProvider
+LOCAL_CERTIFICATE := vendor/google/certs/app
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Im;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.HashMap;
+
+/**
+ * Tests the report of the accounts/purge/# query.
+ */
+@MediumTest
+public class AccountPurgeTest extends ProviderTestCase2<ImProvider> {
+    private static final Uri ACCOUNT_PURGE_URI =
+            Uri.withAppendedPath(Im.Account.CONTENT_URI, "purge");
+
+    private MockContentResolver mResolver;
+
+    public AccountPurgeTest() {
+        super(ImProvider.class, "im");
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+    }
+
+    public void testPurgeReportsEachTable() {
+        long provider = insertProvider("test");
+        long account = insertAccount(provider, "me@example.com");
+        long other = insertAccount(provider, "other@example.com");
+        insertContact(provider, account, "a@example.com");
+        insertContact(provider, account, "b@example.com");
+        insertContact(provider, other, "c@example.com");
+        insertMessage(provider, account, "a@example.com");
+        insertMessage(provider, other, "c@example.com");
+
+        HashMap<String, Integer> report = purge(account);
+        assertEquals(Integer.valueOf(1), report.get("accounts"));
+        assertEquals(Integer.valueOf(2), report.get("contacts"));
+        assertEquals(Integer.valueOf(1), report.get("messages"));
+
+        // the other account kept its rows
+        assertEquals(1, count(Im.Contacts.CONTENT_URI));
+        assertEquals(1, count(Im.Messages.CONTENT_URI));
+
+        // nothing left to purge, but every table is still reported
+        HashMap<String, Integer> again = purge(account);
+        assertEquals(report.keySet(), again.keySet());
+        for (Integer rows : again.values()) {
+            assertEquals(0, rows.intValue());
+        }
+    }
+
+    private HashMap<String, Integer> purge(long account) {
+        Cursor c = mResolver.query(ContentUris.withAppendedId(ACCOUNT_PURGE_URI, account),
+                null, null, null, null);
+        assertNotNull(c);
+        HashMap<String, Integer> report = new HashMap<String, Integer>();
+        try {
+            int tableColumn = c.getColumnIndexOrThrow(ImProvider.PURGE_TABLE);
+            int rowsColumn = c.getColumnIndexOrThrow(ImProvider.PURGE_ROWS);
+            while (c.moveToNext()) {
+                assertNull(report.put(c.getString(tableColumn), c.getInt(rowsColumn)));
+            }
+        } finally {
+            c.close();
+        }
+        return report;
+    }
+
+    private long insertProvider(String name) {
+        ContentValues values = new ContentValues();
+        values.put(Im.Provider.NAME, name);
+        values.put(Im.Provider.FULLNAME, name);
+        return ContentUris.parseId(mResolver.insert(Im.Provider.CONTENT_URI, values));
+    }
+
+    private long insertAccount(long provider, String username) {
+        ContentValues values = new ContentValues();
+        values.put(Im.Account.NAME, username);
+        values.put(Im.Account.PROVIDER, provider);
+        values.put(Im.Account.USERNAME, username);
+        return ContentUris.parseId(mResolver.insert(Im.Account.CONTENT_URI, values));
+    }
+
+    private void insertContact(long provider, long account, String username) {
+        ContentValues values = new ContentValues();
+        values.put(Im.Contacts.USERNAME, username);
+        values.put(Im.Contacts.NICKNAME, username);
+        values.put(Im.Contacts.PROVIDER, provider);
+        values.put(Im.Contacts.ACCOUNT, account);
+        mResolver.insert(Im.Contacts.CONTENT_URI, values);
+    }
+
+    private void insertMessage(long provider, long account, String contact) {
+        ContentValues values = new ContentValues();
+        values.put(Im.Messages.PROVIDER, provider);
+        values.put(Im.Messages.ACCOUNT, account);
+        values.put(Im.Messages.CONTACT, contact);
+        values.put(Im.Messages.BODY, "hi");
+        values.put(Im.Messages.DATE, System.currentTimeMillis());
+        values.put(Im.Messages.TYPE, Im.MessageType.INCOMING);
+        mResolver.insert(Im.Messages.CONTENT_URI, values);
+    }
+
+    private int count(Uri uri) {
+        Cursor c = mResolver.query(uri, null, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Tests the file format written by {@link BulkExporter}.
+ */
+@MediumTest
+public class BulkExporterTest extends AndroidTestCase {
+    private SQLiteDatabase mDb;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE avatars (_id INTEGER PRIMARY KEY, contact TEXT,"
+                + " provider_id INTEGER, account_id INTEGER, hash TEXT, data BLOB);");
+        mFile = File.createTempFile("export", null, getContext().getCacheDir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testHeader() throws IOException {
+        BulkExporter.Table table = BulkExporter.getTable("avatars");
+        assertEquals(0, BulkExporter.export(mDb, table, null, mFile));
+
+        DataInputStream in = open();
+        try {
+            readHeader(in, table);
+            assertEquals(0, in.read());
+            assertEquals(0, readVarint(in));
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testRows() throws IOException {
+        // more than one page of avatars
+        int rows = 40;
+        for (int i = 1; i <= rows; i++) {
+            insertAvatar(i, i % 2 == 0 ? 1 : 2, i == 3 ? null : new byte[] { (byte) i, 0, -1 });
+        }
+
+        BulkExporter.Table table = BulkExporter.getTable("avatars");
+        assertEquals(rows, BulkExporter.export(mDb, table, null, mFile));
+        assertTrue(mFile.length() >= BulkExporter.estimateSize(mDb, table, null));
+
+        DataInputStream in = open();
+        try {
+            readHeader(in, table);
+            for (int i = 1; i <= rows; i++) {
+                assertEquals(1, in.read());
+                Object[] row = readRow(in, table);
+                assertEquals((long) i, row[0]);
+                assertEquals("user" + i + "@example.com", row[1]);
+                assertEquals(10L, row[2]);
+                assertEquals(i % 2 == 0 ? 1L : 2L, row[3]);
+                assertNull(row[4]);
+                if (i == 3) {
+                    assertNull(row[5]);
+                } else {
+                    byte[] data = (byte[]) row[5];
+                    assertEquals(3, data.length);
+                    assertEquals((byte) i, data[0]);
+                    assertEquals(-1, data[2]);
+                }
+            }
+            assertEquals(0, in.read());
+            assertEquals(rows, readVarint(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testAccount() throws IOException {
+        for (int i = 1; i <= 10; i++) {
+            insertAvatar(i, i % 2 == 0 ? 1 : 2, new byte[] { 1 });
+        }
+
+        BulkExporter.Table table = BulkExporter.getTable("avatars");
+        assertEquals(5, BulkExporter.export(mDb, table, 1L, mFile));
+
+        DataInputStream in = open();
+        try {
+            readHeader(in, table);
+            ArrayList<Long> ids = new ArrayList<Long>();
+            while (in.read() == 1) {
+                Object[] row = readRow(in, table);
+                assertEquals(1L, row[3]);
+                ids.add((Long) row[0]);
+            }
+            assertEquals(5, ids.size());
+            assertEquals(2L, (long) ids.get(0));
+            assertEquals(10L, (long) ids.get(4));
+            assertEquals(5, readVarint(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testUnknownTable() {
+        assertNull(BulkExporter.getTable("accounts"));
+    }
+
+    private void insertAvatar(long id, long account, byte[] data) {
+        ContentValues values = new ContentValues();
+        values.put("_id", id);
+        values.put("contact", "user" + id + "@example.com");
+        values.put("provider_id", 10);
+        values.put("account_id", account);
+        values.put("data", data);
+        mDb.insert("avatars", null, values);
+    }
+
+    private DataInputStream open() throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+    }
+
+    private static void readHeader(DataInputStream in, BulkExporter.Table table)
+            throws IOException {
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        assertEquals("IMEX", new String(magic, "US-ASCII"));
+        assertEquals(1, in.read());
+        assertEquals(table.mName, readString(in));
+        assertEquals(table.mColumns.length, readVarint(in));
+        for (int i = 0; i < table.mColumns.length; i++) {
+            assertEquals(table.mColumns[i], readString(in));
+            assertEquals(table.mTypes[i], in.read());
+        }
+    }
+
+    private static Object[] readRow(DataInputStream in, BulkExporter.Table table)
+            throws IOException {
+        Object[] row = new Object[table.mTypes.length];
+        for (int i = 0; i < row.length; i++) {
+            if (in.read() == 0) {
+                continue;
+            }
+            switch (table.mTypes[i]) {
+                case BulkExporter.TYPE_INTEGER:
+                    long n = readVarint(in);
+                    row[i] = (n >>> 1) ^ -(n & 1);
+                    break;
+
+                case BulkExporter.TYPE_TEXT:
+                    row[i] = readString(in);
+                    break;
+
+                default:
+                    row[i] = readBytes(in);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), "UTF-8");
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long n = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            n |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+    }
+}
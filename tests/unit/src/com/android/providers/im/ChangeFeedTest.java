@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the ring of recent changes of the roster tables.
+ */
+@SmallTest
+public class ChangeFeedTest extends TestCase {
+    private ChangeFeed mFeed;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFeed = new ChangeFeed();
+    }
+
+    public void testTrackedTables() {
+        assertTrue(ChangeFeed.isTracked("contacts"));
+        assertTrue(ChangeFeed.isTracked("presence"));
+        assertTrue(ChangeFeed.isTracked("chats"));
+        assertFalse(ChangeFeed.isTracked("messages"));
+    }
+
+    public void testQuery() {
+        ContentValues values = new ContentValues();
+        values.put("nickname", "Alice");
+        mFeed.record("contacts", ChangeFeed.INSERT, 7, ChangeFeed.joinColumns(values));
+        mFeed.record("presence", ChangeFeed.UPDATE, 7, null);
+        mFeed.reset("chats");
+        mFeed.record("contacts", ChangeFeed.DELETE, 8, null);
+        assertEquals(4, mFeed.getLastSequence());
+
+        Cursor c = mFeed.query(0, null);
+        try {
+            assertEquals(4, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertChange(c, 1, "contacts", ChangeFeed.INSERT, 7L, "nickname");
+            assertTrue(c.moveToNext());
+            assertChange(c, 2, "presence", ChangeFeed.UPDATE, 7L, null);
+            assertTrue(c.moveToNext());
+            assertChange(c, 3, "chats", ChangeFeed.RESET, null, null);
+            assertTrue(c.moveToNext());
+            assertChange(c, 4, "contacts", ChangeFeed.DELETE, 8L, null);
+        } finally {
+            c.close();
+        }
+
+        c = mFeed.query(2, "contacts");
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertChange(c, 4, "contacts", ChangeFeed.DELETE, 8L, null);
+        } finally {
+            c.close();
+        }
+
+        c = mFeed.query(4, null);
+        try {
+            assertEquals(0, c.getCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testRingWrapsAround() {
+        int count = ChangeFeed.CAPACITY + 10;
+        for (int i = 1; i <= count; i++) {
+            mFeed.record("contacts", ChangeFeed.UPDATE, i, null);
+        }
+
+        // the oldest changes are gone
+        Cursor c = mFeed.query(5, null);
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertChange(c, count, null, ChangeFeed.RESET, null, null);
+        } finally {
+            c.close();
+        }
+
+        // the last CAPACITY changes are all there
+        c = mFeed.query(count - ChangeFeed.CAPACITY, null);
+        try {
+            assertEquals(ChangeFeed.CAPACITY, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertChange(c, count - ChangeFeed.CAPACITY + 1, "contacts", ChangeFeed.UPDATE,
+                    (long) (count - ChangeFeed.CAPACITY + 1), null);
+            assertTrue(c.moveToLast());
+            assertChange(c, count, "contacts", ChangeFeed.UPDATE, (long) count, null);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testSequenceFromBeforeRestart() {
+        mFeed.record("contacts", ChangeFeed.INSERT, 1, null);
+        Cursor c = mFeed.query(100, null);
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertChange(c, 1, null, ChangeFeed.RESET, null, null);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void assertChange(Cursor c, long sequence, String table, int change,
+            Long rowId, String columns) {
+        assertEquals(sequence, c.getLong(c.getColumnIndexOrThrow(ChangeFeed.SEQUENCE)));
+        assertEquals(table, c.getString(c.getColumnIndexOrThrow(ChangeFeed.TABLE)));
+        assertEquals(change, c.getInt(c.getColumnIndexOrThrow(ChangeFeed.CHANGE)));
+        int rowIdColumn = c.getColumnIndexOrThrow(ChangeFeed.ROW_ID);
+        if (rowId == null) {
+            assertTrue(c.isNull(rowIdColumn));
+        } else {
+            assertEquals((long) rowId, c.getLong(rowIdColumn));
+        }
+        assertEquals(columns, c.getString(c.getColumnIndexOrThrow(ChangeFeed.COLUMNS)));
+    }
+}
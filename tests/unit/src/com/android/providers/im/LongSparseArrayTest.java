@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the long keyed map used for the branding resources of the providers.
+ */
+@SmallTest
+public class LongSparseArrayTest extends TestCase {
+    public void testPutAndGet() {
+        LongSparseArray<String> array = new LongSparseArray<String>(2);
+        long[] keys = new long[] { 7, -3, 1L << 40, 0, 5 };
+        for (long key : keys) {
+            array.put(key, "v" + key);
+        }
+        assertEquals(keys.length, array.size());
+        for (long key : keys) {
+            assertEquals("v" + key, array.get(key));
+        }
+        assertNull(array.get(6));
+        assertNull(array.get(1L << 41));
+    }
+
+    public void testReplace() {
+        LongSparseArray<String> array = new LongSparseArray<String>();
+        array.put(1, "a");
+        array.put(1, "b");
+        assertEquals(1, array.size());
+        assertEquals("b", array.get(1));
+    }
+
+    public void testRemove() {
+        LongSparseArray<String> array = new LongSparseArray<String>();
+        array.put(1, "a");
+        array.put(2, "b");
+        array.put(3, "c");
+        array.remove(2);
+        array.remove(4);
+        assertEquals(2, array.size());
+        assertNull(array.get(2));
+        assertEquals("a", array.get(1));
+        assertEquals("c", array.get(3));
+    }
+}
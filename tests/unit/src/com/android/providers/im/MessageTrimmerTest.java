@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the trimming of the in-memory messages by count and by age.
+ */
+@SmallTest
+public class MessageTrimmerTest extends TestCase {
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE contacts (_id INTEGER PRIMARY KEY, username TEXT,"
+                + " account INTEGER);");
+        mDb.execSQL("CREATE TABLE chats (_id INTEGER PRIMARY KEY, contact_id INTEGER,"
+                + " last_unread_message TEXT);");
+        mDb.execSQL("CREATE TABLE messages (_id INTEGER PRIMARY KEY, contact TEXT,"
+                + " account INTEGER, body TEXT, date INTEGER);");
+        mDb.execSQL("CREATE TABLE groupMessages (_id INTEGER PRIMARY KEY, groupId INTEGER,"
+                + " body TEXT, date INTEGER);");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testTrimByCount() {
+        // keeps 4 messages, trims once there are 4 + 1 more
+        MessageTrimmer trimmer = new MessageTrimmer(4, 0);
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = 1; i <= 5; i++) {
+            insertMessage(1, "a@example.com", "a" + i, now + i);
+            assertEquals(0, trimmer.onMessageInserted(mDb, 1, "a@example.com"));
+        }
+        insertMessage(1, "a@example.com", "a6", now + 6);
+        assertEquals(2, trimmer.onMessageInserted(mDb, 1, "a@example.com"));
+        assertEquals(4, countMessages("contact='a@example.com'"));
+        // the oldest ones went
+        assertEquals(0, countMessages("body IN ('a1', 'a2')"));
+
+        // other conversations are counted on their own
+        insertMessage(2, "a@example.com", "b1", now);
+        assertEquals(0, trimmer.onMessageInserted(mDb, 2, "a@example.com"));
+        assertEquals(5, countMessages(null));
+    }
+
+    public void testTrimGroupMessages() {
+        MessageTrimmer trimmer = new MessageTrimmer(4, 0);
+        long now = System.currentTimeMillis() / 1000;
+        int trimmed = 0;
+        for (int i = 1; i <= 10; i++) {
+            insertGroupMessage(7, now + i);
+            trimmed += trimmer.onGroupMessageInserted(mDb, 7);
+        }
+        // trimmed back to 4 each time there were 6
+        assertEquals(6, trimmed);
+        assertEquals(4, DatabaseUtils.longForQuery(mDb,
+                "SELECT COUNT(*) FROM groupMessages", null));
+    }
+
+    public void testCountExistingMessages() {
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = 1; i <= 5; i++) {
+            insertMessage(1, "a@example.com", "a" + i, now + i);
+        }
+        // the messages were kept on disk before the trimmer, as after a restart
+        MessageTrimmer trimmer = new MessageTrimmer(0, 0, 4, 0);
+        insertMessage(1, "a@example.com", "a6", now + 6);
+        assertEquals(2, trimmer.onMessageInserted(mDb, 1, "a@example.com"));
+        assertEquals(4, countMessages(null));
+    }
+
+    public void testPersistedHistoryKeepsItsOwnLimits() {
+        // 4 messages and an hour in memory, no limit on disk
+        MessageTrimmer trimmer = new MessageTrimmer(4, 3600, 0, 0);
+        long now = System.currentTimeMillis() / 1000;
+        insertMessage(1, "a@example.com", "old", now - 2 * 3600);
+        insertGroupMessage(7, now - 2 * 3600);
+        int trimmed = 0;
+        for (int i = 1; i <= 10; i++) {
+            insertMessage(1, "a@example.com", "a" + i, now + i);
+            trimmed += trimmer.onMessageInserted(mDb, 1, "a@example.com");
+        }
+        // only the old group message went
+        assertEquals(1, trimmed);
+        assertEquals(11, countMessages(null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+                "SELECT COUNT(*) FROM groupMessages", null));
+    }
+
+    public void testEvictByAge() {
+        mDb.execSQL("INSERT INTO contacts (_id, username, account)"
+                + " VALUES (1, 'old@example.com', 1);");
+        mDb.execSQL("INSERT INTO contacts (_id, username, account)"
+                + " VALUES (2, 'new@example.com', 1);");
+        mDb.execSQL("INSERT INTO chats (contact_id, last_unread_message) VALUES (1, 'old');");
+        mDb.execSQL("INSERT INTO chats (contact_id, last_unread_message) VALUES (2, 'new');");
+
+        MessageTrimmer trimmer = new MessageTrimmer(0, 60);
+        long now = System.currentTimeMillis() / 1000;
+        insertMessage(1, "old@example.com", "old", now - 3600);
+        insertGroupMessage(3, now - 3600);
+        insertMessage(1, "new@example.com", "new", now);
+        assertEquals(2, trimmer.onMessageInserted(mDb, 1, "new@example.com"));
+
+        assertEquals(1, countMessages(null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+                "SELECT COUNT(*) FROM groupMessages", null));
+        // the chat that lost all its messages no longer has an unread one
+        assertEquals(1, DatabaseUtils.longForQuery(mDb,
+                "SELECT COUNT(*) FROM chats WHERE last_unread_message IS NULL", null));
+        assertEquals(1, DatabaseUtils.longForQuery(mDb,
+                "SELECT COUNT(*) FROM chats WHERE contact_id=2"
+                + " AND last_unread_message IS NOT NULL", null));
+
+        // not checked again right away
+        insertMessage(1, "old@example.com", "old2", now - 3600);
+        assertEquals(0, trimmer.onMessageInserted(mDb, 1, "old@example.com"));
+
+        trimmer.clear();
+        assertEquals(1, trimmer.onMessageInserted(mDb, 1, "old@example.com"));
+    }
+
+    private void insertMessage(long account, String contact, String body, long date) {
+        ContentValues values = new ContentValues();
+        values.put("account", account);
+        values.put("contact", contact);
+        values.put("body", body);
+        values.put("date", date);
+        mDb.insert("messages", null, values);
+    }
+
+    private void insertGroupMessage(long groupId, long date) {
+        ContentValues values = new ContentValues();
+        values.put("groupId", groupId);
+        values.put("date", date);
+        mDb.insert("groupMessages", null, values);
+    }
+
+    private long countMessages(String where) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM messages"
+                + (where == null ? "" : " WHERE " + where), null);
+    }
+}
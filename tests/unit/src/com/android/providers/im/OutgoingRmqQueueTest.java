@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Im;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the queue of outgoing RMQ messages and the allocation of their ids.
+ */
+@SmallTest
+public class OutgoingRmqQueueTest extends TestCase {
+    private SQLiteDatabase mDb;
+    private OutgoingRmqQueue mQueue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE outgoingRmqMessages (_id INTEGER PRIMARY KEY,"
+                + " rmq_id INTEGER, type INTEGER, ts INTEGER, data TEXT, payload BLOB);");
+        mDb.execSQL("CREATE TABLE lastrmqid (_id INTEGER PRIMARY KEY, rmq_id INTEGER);");
+        mQueue = new OutgoingRmqQueue();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testConsecutiveIds() {
+        assertEquals(3, mQueue.enqueue(mDb, messages(3), false));
+        assertEquals(2, mQueue.enqueue(mDb, messages(2), false));
+        assertEquals(1, queryLong("SELECT MIN(rmq_id) FROM outgoingRmqMessages"));
+        assertEquals(5, queryLong("SELECT MAX(rmq_id) FROM outgoingRmqMessages"));
+        assertEquals(5, queryLong("SELECT COUNT(DISTINCT rmq_id) FROM outgoingRmqMessages"));
+        // a block is reserved ahead of the ids handed out
+        assertTrue(queryLong("SELECT rmq_id FROM lastrmqid") >= 5);
+    }
+
+    public void testIdsSurviveRestart() {
+        mQueue.enqueue(mDb, messages(2), false);
+        long last = queryLong("SELECT MAX(rmq_id) FROM outgoingRmqMessages");
+
+        // a new queue, as after a restart, reads the reserved block back
+        OutgoingRmqQueue queue = new OutgoingRmqQueue();
+        assertTrue(queue.reserve(mDb, 1) > last);
+    }
+
+    public void testExplicitIdsAreNotHandedOutAgain() {
+        mQueue.enqueue(mDb, messages(1), false);
+        ContentValues[] messages = messages(1);
+        messages[0].put(Im.OutgoingRmq.RMQ_ID, 500L);
+        mQueue.enqueue(mDb, messages, false);
+        assertTrue(mQueue.reserve(mDb, 1) > 500);
+    }
+
+    public void testResetKeepsHighWaterMark() {
+        long first = mQueue.reserve(mDb, 10);
+        // lastrmqid written lower by a client, with nothing queued
+        mDb.execSQL("UPDATE lastrmqid SET rmq_id=0");
+        mQueue.reset();
+        assertTrue(mQueue.reserve(mDb, 1) > first + 9);
+    }
+
+    public void testAck() {
+        mQueue.enqueue(mDb, messages(4), false);
+        assertEquals(2, mQueue.ack(mDb, 2));
+        assertEquals(2, queryLong("SELECT COUNT(*) FROM outgoingRmqMessages"));
+        assertEquals(3, queryLong("SELECT MIN(rmq_id) FROM outgoingRmqMessages"));
+        assertEquals(0, mQueue.ack(mDb, 2));
+    }
+
+    public void testEncodedPayload() throws IOException {
+        ContentValues[] messages = messages(1);
+        messages[0].put(Im.OutgoingRmq.DATA, "<message/>");
+        assertEquals(1, mQueue.enqueue(mDb, messages, true));
+
+        Cursor c = mDb.query("outgoingRmqMessages",
+                new String[] { Im.OutgoingRmq.DATA, RmqPayloadCodec.PAYLOAD },
+                null, null, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertTrue(c.isNull(0));
+            assertEquals("<message/>", RmqPayloadCodec.decodeToString(c.getBlob(1)));
+        } finally {
+            c.close();
+        }
+    }
+
+    // messages without an rmq id
+    private static ContentValues[] messages(int count) {
+        ContentValues[] messages = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = new ContentValues();
+            messages[i].put(Im.OutgoingRmq.PROTOBUF_TAG, 1);
+            messages[i].put(Im.OutgoingRmq.TIMESTAMP, i);
+            messages[i].put(Im.OutgoingRmq.DATA, "message " + i);
+        }
+        return messages;
+    }
+
+    private long queryLong(String sql) {
+        return DatabaseUtils.longForQuery(mDb, sql, null);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Im;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the roster order of the contacts, most available first then by name.
+ */
+@SmallTest
+public class PresenceOrderIndexTest extends TestCase {
+    private SQLiteDatabase mDb;
+    private PresenceOrderIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE contacts (_id INTEGER PRIMARY KEY, username TEXT,"
+                + " nickname TEXT, account INTEGER, type INTEGER);");
+        mDb.execSQL("CREATE TABLE presence (_id INTEGER PRIMARY KEY, contact_id INTEGER,"
+                + " mode INTEGER);");
+        mIndex = new PresenceOrderIndex();
+
+        insertContact(1, "dave@example.com", null, 1, 0, Im.Presence.AVAILABLE);
+        insertContact(2, "carol@example.com", "Carol", 1, 0, Im.Presence.AWAY);
+        insertContact(3, "bob@example.com", "bob", 1, 0, Im.Presence.AVAILABLE);
+        insertContact(4, "alice@example.com", "Alice", 1, 0, null);
+        insertContact(5, "eve@example.com", "Eve", 1, Im.Contacts.TYPE_BLOCKED,
+                Im.Presence.AVAILABLE);
+        insertContact(6, "frank@example.com", "Frank", 2, 0, Im.Presence.AVAILABLE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testOrder() {
+        // case is ignored, and blocked contacts are left out
+        assertOrder(1, 3, 1, 2, 4);
+        assertOrder(2, 6);
+    }
+
+    public void testSetPresence() {
+        assertOrder(1, 3, 1, 2, 4);
+        mIndex.setPresence(3, Im.Presence.OFFLINE);
+        mIndex.setPresence(4, Im.Presence.AVAILABLE);
+        assertOrder(1, 4, 1, 2, 3);
+        mIndex.setPresence(2, null);
+        assertOrder(1, 4, 1, 3, 2);
+    }
+
+    public void testAddAndRemove() {
+        assertOrder(1, 3, 1, 2, 4);
+        mIndex.addContact(1, 7, "bill@example.com", null, 0, Im.Presence.AVAILABLE);
+        mIndex.addContact(1, 8, "mallory@example.com", null, Im.Contacts.TYPE_BLOCKED,
+                Im.Presence.AVAILABLE);
+        assertOrder(1, 7, 3, 1, 2, 4);
+
+        // adding it again replaces it
+        mIndex.addContact(1, 7, "bill@example.com", "Zed", 0, Im.Presence.AVAILABLE);
+        assertOrder(1, 3, 1, 7, 2, 4);
+
+        mIndex.removeContact(1);
+        assertOrder(1, 3, 7, 2, 4);
+    }
+
+    public void testChangesBeforeLoadAreRead() {
+        // not loaded yet, the index has nothing to change
+        mIndex.setPresence(4, Im.Presence.AVAILABLE);
+        mDb.execSQL("UPDATE presence SET mode=" + Im.Presence.AVAILABLE + " WHERE contact_id=4");
+        assertOrder(1, 4, 3, 1, 2);
+    }
+
+    public void testInvalidate() {
+        assertOrder(1, 3, 1, 2, 4);
+        mDb.execSQL("UPDATE contacts SET nickname='Aaron' WHERE _id=1");
+        assertOrder(1, 3, 1, 2, 4);
+
+        mIndex.invalidate(1);
+        assertOrder(1, 1, 3, 2, 4);
+
+        mDb.execSQL("DELETE FROM contacts WHERE _id=6");
+        mIndex.invalidateAll();
+        assertOrder(2);
+    }
+
+    private void assertOrder(long account, long... ids) {
+        ArrayList<Long> roster = new ArrayList<Long>();
+        Cursor c = mIndex.query(mDb, account);
+        try {
+            while (c.moveToNext()) {
+                roster.add(c.getLong(c.getColumnIndexOrThrow(Im.Contacts._ID)));
+            }
+        } finally {
+            c.close();
+        }
+        ArrayList<Long> expected = new ArrayList<Long>();
+        for (long id : ids) {
+            expected.add(id);
+        }
+        assertEquals(expected, roster);
+    }
+
+    private void insertContact(long id, String username, String nickname, long account,
+            int type, Integer mode) {
+        ContentValues values = new ContentValues();
+        values.put("_id", id);
+        values.put("username", username);
+        values.put("nickname", nickname);
+        values.put("account", account);
+        values.put("type", type);
+        mDb.insert("contacts", null, values);
+        if (mode != null) {
+            values.clear();
+            values.put("contact_id", id);
+            values.put("mode", mode);
+            mDb.insert("presence", null, values);
+        }
+    }
+}
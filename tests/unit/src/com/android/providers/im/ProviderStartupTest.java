@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.database.Cursor;
+import android.provider.Im;
+import android.test.AndroidTestCase;
+import android.test.PerformanceTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures how long the provider takes to start: how long onCreate holds up the process
+ * that creates the provider, and how long until the first query is answered. The database
+ * is created by a first start that isn't measured, as it is on a device after the first
+ * boot.
+ *
+ * The times are logged, and reported as intermediates when the runner is in performance
+ * mode.
+ */
+@LargeTest
+public class ProviderStartupTest extends AndroidTestCase implements PerformanceTestCase {
+    private static final String TAG = "ProviderStartupTest";
+
+    private static final int ITERATIONS = 10;
+
+    private static final String[] PROVIDER_PROJECTION = new String[] {
+            Im.Provider._ID,
+            Im.Provider.NAME,
+    };
+
+    private RenamingDelegatingContext mTestContext;
+    private PerformanceTestCase.Intermediates mIntermediates;
+
+    public int startPerformance(PerformanceTestCase.Intermediates intermediates) {
+        mIntermediates = intermediates;
+        return 0;
+    }
+
+    public boolean isPerformanceOnly() {
+        return false;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // keeps the test database apart from the real one
+        mTestContext = new RenamingDelegatingContext(getContext(), "startuptest.");
+        mTestContext.deleteDatabase("im.db");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTestContext.deleteDatabase("im.db");
+        super.tearDown();
+    }
+
+    public void testStartup() {
+        // creates the database
+        long[] times = start();
+        report("first start", times);
+
+        long onCreate = 0;
+        long firstQuery = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            times = start();
+            onCreate += times[0];
+            firstQuery += times[1];
+        }
+        report("start", new long[] { onCreate / ITERATIONS, firstQuery / ITERATIONS });
+    }
+
+    /**
+     * Creates a provider and queries it once.
+     *
+     * @return the time onCreate took, and the time until the query was answered, in ns.
+     */
+    private long[] start() {
+        ImProvider provider = new ImProvider();
+        long start = System.nanoTime();
+        // calls onCreate
+        provider.attachInfo(mTestContext, null);
+        long created = System.nanoTime();
+        Cursor c = provider.query(Im.Provider.CONTENT_URI, PROVIDER_PROJECTION,
+                null, null, null);
+        long answered = System.nanoTime();
+
+        assertNotNull(c);
+        c.close();
+        return new long[] { created - start, answered - start };
+    }
+
+    private void report(String name, long[] times) {
+        Log.i(TAG, name + ": onCreate " + (times[0] / 1000) + "us, first query "
+                + (times[1] / 1000) + "us");
+        if (mIntermediates != null) {
+            mIntermediates.addIntermediate(name + " onCreate", times[0]);
+            mIntermediates.addIntermediate(name + " first query", times[1]);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the assignment of the quick switch slots to the chats.
+ */
+@SmallTest
+public class QuickSwitchSlotsTest extends TestCase {
+    // the order the slots are handed out in
+    private static final int[] ORDER = new int[] { 0, 9, 8, 7, 6, 5, 4, 3, 2, 1 };
+
+    private QuickSwitchSlots mSlots;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSlots = new QuickSwitchSlots();
+    }
+
+    public void testSlotOrder() {
+        for (int i = 0; i < QuickSwitchSlots.NUM_SLOTS; i++) {
+            assertEquals(ORDER[i], addChat(i + 1, 100 + i, i));
+        }
+        assertEquals(-1, addChat(11, 111, 11));
+        assertTrue(mSlots.hasUnslottedChats());
+    }
+
+    public void testNextSlotOnlyPeeks() {
+        assertEquals(0, mSlots.nextSlotForContact(100));
+        assertEquals(0, mSlots.nextSlotForContact(101));
+        assertEquals(-1, mSlots.getSlot(1));
+    }
+
+    public void testNewChatWithContactKeepsSlot() {
+        addChat(1, 100, 1);
+        assertEquals(9, addChat(2, 101, 2));
+        assertEquals(9, addChat(3, 101, 3));
+        assertEquals(-1, mSlots.getSlot(2));
+        assertEquals(3, mSlots.getChatIdForContact(101));
+        // the replaced chat no longer takes a slot
+        assertEquals(8, mSlots.nextSlotForContact(102));
+    }
+
+    public void testRemoveFreesSlot() {
+        addChat(1, 100, 1);
+        addChat(2, 101, 2);
+        mSlots.removeChat(1);
+        assertEquals(-1, mSlots.getChatIdForContact(100));
+        assertEquals(0, mSlots.nextSlotForContact(102));
+        mSlots.removeChatForContact(101);
+        assertEquals(-1, mSlots.getSlot(2));
+    }
+
+    public void testBackfillPicksMostRecentChat() {
+        for (int i = 0; i < QuickSwitchSlots.NUM_SLOTS; i++) {
+            addChat(i + 1, 100 + i, i);
+        }
+        addChat(11, 111, 50);
+        addChat(12, 112, 60);
+        addChat(13, 113, 40);
+        assertEquals(-1, mSlots.backfill());
+
+        // the chat in slot 8 goes away
+        mSlots.removeChat(3);
+        assertEquals(12, mSlots.backfill());
+        assertEquals(8, mSlots.getSlot(12));
+        assertEquals(-1, mSlots.backfill());
+
+        mSlots.setLastMessageDate(13, 70);
+        mSlots.removeChat(1);
+        assertEquals(13, mSlots.backfill());
+        assertEquals(0, mSlots.getSlot(13));
+        assertTrue(mSlots.hasUnslottedChats());
+    }
+
+    public void testLoadAfterInvalidate() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("CREATE TABLE chats (_id INTEGER PRIMARY KEY, contact_id INTEGER,"
+                    + " shortcut INTEGER, last_message_date INTEGER);");
+            insertChat(db, 1, 100, 0, 10);
+            insertChat(db, 2, 101, 9, 20);
+            insertChat(db, 3, 102, null, 30);
+
+            addChat(7, 107, 5);
+            mSlots.invalidate();
+            assertEquals(-1, mSlots.getChatIdForContact(107));
+
+            mSlots.loadIfInvalid(db);
+            assertEquals(0, mSlots.getSlot(1));
+            assertEquals(9, mSlots.getSlot(2));
+            assertEquals(-1, mSlots.getSlot(3));
+            assertEquals(3, mSlots.getChatIdForContact(102));
+            assertEquals(8, mSlots.nextSlotForContact(103));
+            assertEquals(3, mSlots.backfill());
+
+            // loaded once, until it's invalidated again
+            db.delete("chats", null, null);
+            mSlots.loadIfInvalid(db);
+            assertEquals(0, mSlots.getSlot(1));
+        } finally {
+            db.close();
+        }
+    }
+
+    private int addChat(long chatId, long contactId, long lastMessageDate) {
+        int slot = mSlots.nextSlotForContact(contactId);
+        mSlots.addChat(chatId, contactId, slot, lastMessageDate);
+        assertEquals(slot, mSlots.getSlot(chatId));
+        return slot;
+    }
+
+    private static void insertChat(SQLiteDatabase db, long id, long contactId,
+            Integer shortcut, long lastMessageDate) {
+        ContentValues values = new ContentValues();
+        values.put("_id", id);
+        values.put("contact_id", contactId);
+        values.put("shortcut", shortcut);
+        values.put("last_message_date", lastMessageDate);
+        db.insert("chats", null, values);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.im;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Im;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the encoding of the payloads of the queued RMQ messages.
+ */
+@SmallTest
+public class RmqPayloadCodecTest extends TestCase {
+
+    public void testShortPayloadIsStoredAsIs() throws IOException {
+        byte[] payload = RmqPayloadCodec.encode("hello");
+        assertEquals(0, payload[0] & RmqPayloadCodec.FLAG_DEFLATED);
+        assertEquals(5, RmqPayloadCodec.getLength(payload));
+        assertEquals("hello", RmqPayloadCodec.decodeToString(payload));
+    }
+
+    public void testLongPayloadIsDeflated() throws IOException {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            buf.append("<message to='someone@example.com'/>");
+        }
+        String data = buf.toString();
+
+        byte[] payload = RmqPayloadCodec.encode(data);
+        assertEquals(RmqPayloadCodec.FLAG_DEFLATED, payload[0] & RmqPayloadCodec.FLAG_DEFLATED);
+        assertTrue(payload.length < data.length());
+        assertEquals(data.length(), RmqPayloadCodec.getLength(payload));
+        assertEquals(data, RmqPayloadCodec.decodeToString(payload));
+    }
+
+    public void testIncompressiblePayloadIsStoredAsIs() throws IOException {
+        byte[] data = new byte[300];
+        long seed = 12345;
+        for (int i = 0; i < data.length; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            data[i] = (byte) (seed >>> 56);
+        }
+
+        byte[] payload = RmqPayloadCodec.encode(data);
+        assertEquals(0, payload[0] & RmqPayloadCodec.FLAG_DEFLATED);
+        assertEquals(data.length, RmqPayloadCodec.getLength(payload));
+        assertEquals(data.length, readAll(RmqPayloadCodec.openStream(payload)).length);
+    }
+
+    public void testNonAsciiPayload() throws IOException {
+        String data = "caf\u00e9 \u4e2d\u6587";
+        byte[] payload = RmqPayloadCodec.encode(data);
+        assertEquals(data.getBytes("UTF-8").length, RmqPayloadCodec.getLength(payload));
+        assertEquals(data, RmqPayloadCodec.decodeToString(payload));
+    }
+
+    public void testMalformedPayload() {
+        try {
+            RmqPayloadCodec.getLength(new byte[] { 0, (byte) 0x80 });
+            fail("truncated length accepted");
+        } catch (IOException ex) {
+            // expected
+        }
+        try {
+            RmqPayloadCodec.openStream(new byte[] { 0 });
+            fail("missing length accepted");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    public void testReplay() throws IOException {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL("CREATE TABLE outgoingRmqMessages (_id INTEGER PRIMARY KEY,"
+                    + " rmq_id INTEGER, type INTEGER, ts INTEGER, data TEXT, payload BLOB);");
+
+            ContentValues values = new ContentValues();
+            values.put(Im.OutgoingRmq.RMQ_ID, 1);
+            values.put(Im.OutgoingRmq.PROTOBUF_TAG, 7);
+            values.put(Im.OutgoingRmq.TIMESTAMP, 1000);
+            // queued before the payloads were encoded
+            values.put(Im.OutgoingRmq.DATA, "legacy");
+            db.insert("outgoingRmqMessages", null, values);
+
+            values.clear();
+            values.put(Im.OutgoingRmq.RMQ_ID, 2);
+            values.put(Im.OutgoingRmq.PROTOBUF_TAG, 8);
+            values.put(Im.OutgoingRmq.TIMESTAMP, 2000);
+            values.put(RmqPayloadCodec.PAYLOAD, RmqPayloadCodec.encode("encoded"));
+            db.insert("outgoingRmqMessages", null, values);
+
+            final ArrayList<String> messages = new ArrayList<String>();
+            Cursor c = db.query("outgoingRmqMessages", null, null, null, null, null,
+                    "rmq_id");
+            try {
+                int count = RmqPayloadCodec.replay(c, new RmqPayloadCodec.Receiver() {
+                    public void onMessage(long rmqId, int type, long timestamp,
+                            InputStream payload, int length) throws IOException {
+                        byte[] data = readAll(payload);
+                        assertEquals(length, data.length);
+                        messages.add(rmqId + "/" + type + "/" + timestamp + "/"
+                                + new String(data, "UTF-8"));
+                    }
+                });
+                assertEquals(2, count);
+            } finally {
+                c.close();
+            }
+            assertEquals("1/7/1000/legacy", messages.get(0));
+            assertEquals("2/8/2000/encoded", messages.get(1));
+        } finally {
+            db.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}